@@ -0,0 +1,194 @@
+package com.ming;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How connecting to each upstream address went lately, shared by all workers: a smoothed
+ * connect time for the addresses that answered, when the ones that did not last failed. The
+ * addresses of a target are tried fastest first, the ones that failed recently last.
+ */
+class AddressStats {
+
+    // weight of a new sample in the smoothed connect time, as TCP smooths its RTT
+    private static final double SMOOTHING = 0.125;
+
+    /**
+     * Address ranks, tried in this order
+     */
+    private static final int KNOWN = 0;
+    private static final int UNKNOWN = 1;
+    private static final int FAILED = 2;
+
+    private static final class Stats {
+        // guarded by this
+        private long smoothedNanos = -1;
+        private long failedAt;
+        private boolean failing;
+
+        synchronized void connected(long nanos) {
+            smoothedNanos = smoothedNanos < 0 ? nanos : (long) (smoothedNanos + SMOOTHING * (nanos - smoothedNanos));
+            failing = false;
+        }
+
+        synchronized void failed(long now) {
+            failedAt = now;
+            failing = true;
+        }
+
+        synchronized int rank(long now, long failurePenaltyMillis) {
+            if (failing && now - failedAt < failurePenaltyMillis)
+                return FAILED;
+
+            return smoothedNanos < 0 ? UNKNOWN : KNOWN;
+        }
+
+        // within a rank: the fastest first, the one that failed longest ago first
+        synchronized long order(int rank) {
+            return rank == FAILED ? failedAt : smoothedNanos;
+        }
+    }
+
+    private final int maxEntries;
+    private final long failurePenaltyMillis;
+
+    private final Map<InetSocketAddress, Stats> stats = new ConcurrentHashMap<>();
+
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    /**
+     * An address that failed is tried after the others for failurePenaltyMillis, then it is
+     * ranked as if it was never tried.
+     */
+    AddressStats(int maxEntries, long failurePenaltyMillis) {
+        this.maxEntries = maxEntries;
+        this.failurePenaltyMillis = failurePenaltyMillis;
+    }
+
+    /**
+     * The order to try the addresses of a target in: the families alternate as they are
+     * resolved (the first one first), then the ones known to connect go first, fastest
+     * first, and the ones that failed recently last.
+     */
+    InetSocketAddress[] order(InetAddress[] addresses, int port, long now) {
+        int n = addresses.length;
+        InetSocketAddress[] targets = new InetSocketAddress[n];
+
+        // the families alternate, each in resolved order
+        boolean firstIsV6 = addresses[0] instanceof Inet6Address;
+        int same = 0, other = 0, count = 0;
+        while (count < n) {
+            same = nextOfFamily(addresses, firstIsV6, same);
+            if (same < n)
+                targets[count++] = new InetSocketAddress(addresses[same++], port);
+
+            other = nextOfFamily(addresses, !firstIsV6, other);
+            if (other < n)
+                targets[count++] = new InetSocketAddress(addresses[other++], port);
+        }
+
+        // stable insertion sort by rank, then by what ranks within it
+        int[] ranks = new int[n];
+        long[] orders = new long[n];
+        for (int i = 0; i < n; i++) {
+            Stats entry = stats.get(targets[i]);
+            ranks[i] = entry == null ? UNKNOWN : entry.rank(now, failurePenaltyMillis);
+            orders[i] = entry == null ? 0 : entry.order(ranks[i]);
+        }
+
+        for (int i = 1; i < n; i++) {
+            InetSocketAddress target = targets[i];
+            int rank = ranks[i];
+            long order = orders[i];
+
+            int j = i - 1;
+            while (j >= 0 && (ranks[j] > rank || (ranks[j] == rank && rank != UNKNOWN && orders[j] > order))) {
+                targets[j + 1] = targets[j];
+                ranks[j + 1] = ranks[j];
+                orders[j + 1] = orders[j];
+                j--;
+            }
+            targets[j + 1] = target;
+            ranks[j + 1] = rank;
+            orders[j + 1] = order;
+        }
+
+        return targets;
+    }
+
+    // index of the first address of the family at or after from, the length if there is none
+    private static int nextOfFamily(InetAddress[] addresses, boolean v6, int from) {
+        while (from < addresses.length && (addresses[from] instanceof Inet6Address) != v6)
+            from++;
+
+        return from;
+    }
+
+    void started() {
+        attempts.incrementAndGet();
+    }
+
+    /**
+     * An attempt to target connected after nanos; it took fallback attempts if it was not the
+     * first address tried.
+     */
+    void connected(InetSocketAddress target, long nanos, boolean fallback) {
+        entry(target).connected(nanos);
+        if (fallback)
+            fallbacks.incrementAndGet();
+    }
+
+    /**
+     * An attempt to target was refused, failed or did not answer in time.
+     */
+    void failed(InetSocketAddress target, long now) {
+        entry(target).failed(now);
+        failures.incrementAndGet();
+    }
+
+    private Stats entry(InetSocketAddress target) {
+        Stats entry = stats.get(target);
+        if (entry != null)
+            return entry;
+
+        if (stats.size() >= maxEntries)
+            evict();
+
+        return stats.computeIfAbsent(target, t -> new Stats());
+    }
+
+    // whatever comes first until there is room again, a dropped address starts over unknown
+    private void evict() {
+        Iterator<InetSocketAddress> iterator = stats.keySet().iterator();
+        while (stats.size() >= maxEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    int size() {
+        return stats.size();
+    }
+
+    long getAttempts() {
+        return attempts.get();
+    }
+
+    long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Connects won by an address other than the first one tried.
+     */
+    long getFallbacks() {
+        return fallbacks.get();
+    }
+}
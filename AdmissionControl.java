@@ -0,0 +1,257 @@
+package com.ming;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission of client connections and requests, shared by the acceptor and all workers. Open
+ * connections are capped globally and per source address, the requests and bytes of a source
+ * address are limited by token buckets. What is refused is answered with a canned response
+ * before anything is parsed.
+ *
+ * The per-address state lives in a striped table: an address hashes to one of a fixed number
+ * of stripes, each a small LRU map behind its own lock, so workers rarely contend and the table
+ * never holds more than maxClients addresses. An evicted address starts over with full buckets,
+ * its open connections keep their state until they close.
+ */
+class AdmissionControl {
+
+    private static final int STRIPES = 64;
+    private static final int EVICTION_SCAN = 8;
+
+    /**
+     * Refills continuously at rate per second up to burst. Bytes may be taken beyond what is
+     * there, the debt is paid back by the refill before the next take.
+     */
+    static final class TokenBucket {
+        private final double ratePerMillis;
+        private final double burst;
+
+        // guarded by this
+        private double tokens;
+        private long last;
+
+        TokenBucket(double ratePerSecond, double burst, long now) {
+            this.ratePerMillis = ratePerSecond / 1000;
+            this.burst = burst;
+            this.tokens = burst;
+            this.last = now;
+        }
+
+        /**
+         * Take n tokens if there are that many.
+         */
+        synchronized boolean tryTake(long n, long now) {
+            refill(now);
+            if (tokens < n)
+                return false;
+
+            tokens -= n;
+            return true;
+        }
+
+        /**
+         * Take n tokens whatever is left, the milliseconds until the bucket is out of debt.
+         */
+        synchronized long take(long n, long now) {
+            refill(now);
+            tokens -= n;
+
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / ratePerMillis);
+        }
+
+        private void refill(long now) {
+            if (now > last) {
+                tokens = Math.min(burst, tokens + (now - last) * ratePerMillis);
+                last = now;
+            }
+        }
+    }
+
+    /**
+     * The state of one source address, held by each of its connections.
+     */
+    final class Client {
+        final InetAddress address;
+
+        private final AtomicInteger connections = new AtomicInteger();
+
+        // null when not limited
+        private final TokenBucket requests;
+        private final TokenBucket bytes;
+
+        private Client(InetAddress address, long now) {
+            this.address = address;
+            this.requests = requestsPerSecond > 0 ? new TokenBucket(requestsPerSecond, requestBurst, now) : null;
+            this.bytes = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, byteBurst, now) : null;
+        }
+
+        /**
+         * Whether another request may start now.
+         */
+        boolean tryRequest(long now) {
+            if (requests == null || requests.tryTake(1, now))
+                return true;
+
+            limitedRequests.increment();
+            return false;
+        }
+
+        /**
+         * Account for n bytes read from or written to the client, the milliseconds it has to
+         * pause for to stay within its byte rate.
+         */
+        long takeBytes(long n, long now) {
+            if (bytes == null)
+                return 0;
+
+            long wait = bytes.take(n, now);
+            if (wait > 0)
+                throttled.increment();
+
+            return wait;
+        }
+
+        /**
+         * One of its connections closed, exactly once per admitted connection.
+         */
+        void release() {
+            connections.decrementAndGet();
+            open.decrementAndGet();
+        }
+    }
+
+    // addresses in LRU order, the least recently admitted is dropped when it is full
+    private static final class Stripe {
+        final LinkedHashMap<InetAddress, Client> clients = new LinkedHashMap<>(16, 0.75f, true);
+        final int maxSize;
+
+        Stripe(int maxSize) {
+            this.maxSize = maxSize;
+        }
+    }
+
+    private final int maxConnections;
+    private final int maxConnectionsPerClient;
+    private final double requestsPerSecond;
+    private final int requestBurst;
+    private final long bytesPerSecond;
+    private final long byteBurst;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicInteger open = new AtomicInteger();
+
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder limitedRequests = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+
+    /**
+     * A rate of 0 does not limit requests or bytes, maxClients bounds the addresses kept track
+     * of.
+     */
+    AdmissionControl(int maxConnections, int maxConnectionsPerClient, int maxClients,
+                     double requestsPerSecond, int requestBurst, long bytesPerSecond, long byteBurst) {
+        if (maxConnections <= 0 || maxConnectionsPerClient <= 0 || maxClients <= 0)
+            throw new IllegalArgumentException("Connection and client limits must be positive: " +
+                    maxConnections + ", " + maxConnectionsPerClient + ", " + maxClients);
+
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerClient = maxConnectionsPerClient;
+        this.requestsPerSecond = requestsPerSecond;
+        this.requestBurst = Math.max(requestBurst, 1);
+        this.bytesPerSecond = bytesPerSecond;
+        this.byteBurst = Math.max(byteBurst, 1);
+
+        int perStripe = Math.max((maxClients + STRIPES - 1) / STRIPES, 1);
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe(perStripe);
+    }
+
+    /**
+     * Admit a new connection from address, or null when a connection limit is reached. An
+     * admitted connection calls release() on the returned state once it closes.
+     */
+    Client admit(InetAddress address, long now) {
+        if (open.incrementAndGet() > maxConnections) {
+            open.decrementAndGet();
+            rejectedConnections.increment();
+            return null;
+        }
+
+        int h = address.hashCode();
+        Stripe stripe = stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+
+        Client client;
+        synchronized (stripe) {
+            client = stripe.clients.get(address);
+            if (client == null) {
+                client = new Client(address, now);
+                stripe.clients.put(address, client);
+
+                if (stripe.clients.size() > stripe.maxSize)
+                    evict(stripe, client);
+            }
+        }
+
+        if (client.connections.incrementAndGet() > maxConnectionsPerClient) {
+            client.release();
+            rejectedConnections.increment();
+            return null;
+        }
+
+        return client;
+    }
+
+    // the least recently admitted address without open connections, or the least recently
+    // admitted one if the first few all have some; never the one just added
+    private static void evict(Stripe stripe, Client added) {
+        Iterator<Client> iterator = stripe.clients.values().iterator();
+        for (int i = 0; i < EVICTION_SCAN && iterator.hasNext(); i++) {
+            Client client = iterator.next();
+            if (client != added && client.connections.get() == 0) {
+                iterator.remove();
+                return;
+            }
+        }
+
+        iterator = stripe.clients.values().iterator();
+        iterator.next();
+        iterator.remove();
+    }
+
+    /**
+     * Addresses kept track of.
+     */
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.clients.size();
+            }
+        }
+
+        return size;
+    }
+
+    int getOpen() {
+        return open.get();
+    }
+
+    long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    long getLimitedRequests() {
+        return limitedRequests.sum();
+    }
+
+    /**
+     * Times a client was paused for going over its byte rate.
+     */
+    long getThrottled() {
+        return throttled.sum();
+    }
+}
@@ -0,0 +1,349 @@
+package com.ming;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access and debug log written off the event loop. Producers copy a fixed-layout record into a
+ * preallocated slot of a bounded lock-free ring (multi-producer, single consumer) and return;
+ * a background thread formats the records in batches and appends them to a file, rotated by
+ * size, or to stdout. When the ring is full the record is dropped and counted, the caller
+ * never waits.
+ *
+ * Levels below LEVEL are compiled out: guard debug calls with if (AsyncLog.DEBUG).
+ */
+final class AsyncLog {
+
+    static final int TRACE_LEVEL = 0;
+    static final int DEBUG_LEVEL = 1;
+    static final int INFO_LEVEL = 2;
+    static final int WARN_LEVEL = 3;
+    static final int ERROR_LEVEL = 4;
+
+    /**
+     * The compile-time level, change and rebuild to get the per-connection debug records.
+     */
+    static final int LEVEL = INFO_LEVEL;
+    static final boolean DEBUG = LEVEL <= DEBUG_LEVEL;
+    static final boolean INFO = LEVEL <= INFO_LEVEL;
+
+    private static final String[] LEVEL_NAMES = {"TRACE", "DEBUG", "INFO", "WARN", "ERROR"};
+
+    private static final int EVENT_MESSAGE = 0;
+    private static final int EVENT_ACCESS = 1;
+    private static final int EVENT_ERROR = 2;
+
+    private static final int DEFAULT_CAPACITY = 1 << 16;
+    static final int TEXT_SIZE = 128;
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private static volatile AsyncLog instance;
+
+    private final int capacity;
+    private final int mask;
+
+    // a slot is free for position p when its sequence is p, holds a record when it is p + 1
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    // the records, one entry per slot
+    private final long[] times;
+    private final int[] levels;
+    private final int[] events;
+    private final int[] codes;
+    private final long[] values;
+    private final long[] durations;
+    private final Object[] refs;
+    private final byte[][] texts;
+    private final int[] textLengths;
+
+    private final LongAdder dropped = new LongAdder();
+    private long droppedReported;
+
+    private final Path file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private FileChannel channel;
+    private long fileBytes;
+
+    private final StringBuilder line = new StringBuilder(256);
+
+    /**
+     * file null writes to stdout. Otherwise file is rotated to file.1 .. file.maxFiles once it
+     * is over maxFileBytes.
+     */
+    AsyncLog(int capacity, Path file, long maxFileBytes, int maxFiles) {
+        this.capacity = Integer.highestOneBit(Math.max(capacity, 2));
+        this.mask = this.capacity - 1;
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++)
+            sequences.set(i, i);
+
+        this.times = new long[this.capacity];
+        this.levels = new int[this.capacity];
+        this.events = new int[this.capacity];
+        this.codes = new int[this.capacity];
+        this.values = new long[this.capacity];
+        this.durations = new long[this.capacity];
+        this.refs = new Object[this.capacity];
+        this.texts = new byte[this.capacity][TEXT_SIZE];
+        this.textLengths = new int[this.capacity];
+
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * The process-wide log, to stdout unless configure() was called first.
+     */
+    static AsyncLog get() {
+        AsyncLog log = instance;
+        if (log == null) {
+            synchronized (AsyncLog.class) {
+                log = instance;
+                if (log == null)
+                    log = instance = new AsyncLog(DEFAULT_CAPACITY, null, 0, 0).start();
+            }
+        }
+
+        return log;
+    }
+
+    static synchronized AsyncLog configure(Path file, long maxFileBytes, int maxFiles) {
+        if (instance != null)
+            throw new IllegalStateException("Log already started");
+
+        instance = new AsyncLog(DEFAULT_CAPACITY, file, maxFileBytes, maxFiles).start();
+        return instance;
+    }
+
+    AsyncLog start() {
+        Thread writer = new Thread(this::run, "async-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        // what is still in the ring when the process exits
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "async-log-flush"));
+
+        return this;
+    }
+
+    /**
+     * A constant text and one value, e.g. message(INFO_LEVEL, "accepted on worker", 3).
+     */
+    void message(int level, String text, long value) {
+        if (level < LEVEL)
+            return;
+
+        long pos = claim();
+        if (pos < 0)
+            return;
+
+        int slot = (int) pos & mask;
+        fill(slot, level, EVENT_MESSAGE, 0, value, 0, text);
+        publish(pos);
+    }
+
+    /**
+     * One completed request, host as copied by HttpRequest.copyHost(). Nothing is allocated.
+     */
+    void access(int reactor, int type, byte[] host, int hostLength, int status, long bytes, long durationNanos) {
+        if (!INFO)
+            return;
+
+        long pos = claim();
+        if (pos < 0)
+            return;
+
+        // the request type and the reactor ride along in the event word
+        int slot = (int) pos & mask;
+        fill(slot, INFO_LEVEL, EVENT_ACCESS | type << 8 | (reactor + 1) << 16, status, bytes, durationNanos, null);
+
+        int length = Math.min(hostLength, TEXT_SIZE);
+        System.arraycopy(host, 0, texts[slot], 0, length);
+        textLengths[slot] = length;
+
+        publish(pos);
+    }
+
+    void error(String text, Throwable error) {
+        long pos = claim();
+        if (pos < 0)
+            return;
+
+        int slot = (int) pos & mask;
+        fill(slot, ERROR_LEVEL, EVENT_ERROR, 0, 0, 0, text);
+        refs[slot] = error;
+        publish(pos);
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    private void fill(int slot, int level, int event, int code, long value, long duration, String text) {
+        times[slot] = System.currentTimeMillis();
+        levels[slot] = level;
+        events[slot] = event;
+        codes[slot] = code;
+        values[slot] = value;
+        durations[slot] = duration;
+        refs[slot] = text;
+        textLengths[slot] = 0;
+    }
+
+    private long claim() {
+        long pos = tail.get();
+
+        while (true) {
+            long diff = sequences.get((int) pos & mask) - pos;
+
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1))
+                    return pos;
+            } else if (diff < 0) {
+                // full, the writer is behind
+                dropped.increment();
+                return -1;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    private void publish(long pos) {
+        sequences.set((int) pos & mask, pos + 1);
+    }
+
+    private void run() {
+        while (true) {
+            if (drain() == 0)
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    // the single consumer: the writer thread, or the shutdown hook once
+    private synchronized int drain() {
+        int drained = 0;
+        StringBuilder batch = new StringBuilder(BATCH_SIZE * 96);
+
+        while (true) {
+            int slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1)
+                break;
+
+            format(slot, batch);
+            refs[slot] = null;
+            sequences.set(slot, head + capacity);
+            head++;
+
+            if (++drained % BATCH_SIZE == 0) {
+                write(batch);
+                batch.setLength(0);
+            }
+        }
+
+        long droppedNow = dropped.sum();
+        if (droppedNow != droppedReported) {
+            batch.append(Instant.now()).append(" WARN log ring full, dropped ")
+                    .append(droppedNow - droppedReported).append(" records\n");
+            droppedReported = droppedNow;
+        }
+
+        if (!batch.isEmpty())
+            write(batch);
+
+        return drained;
+    }
+
+    private void format(int slot, StringBuilder out) {
+        line.setLength(0);
+        line.append(Instant.ofEpochMilli(times[slot])).append(' ').append(LEVEL_NAMES[levels[slot]]).append(' ');
+
+        int event = events[slot] & 0xFF;
+        switch (event) {
+            case EVENT_ACCESS -> {
+                int type = (events[slot] >>> 8) & 0xFF;
+                line.append("access reactor=").append((events[slot] >>> 16) - 1)
+                        .append(" method=").append(HttpRequest.methodName(type))
+                        .append(" host=").append(new String(texts[slot], 0, textLengths[slot], StandardCharsets.US_ASCII))
+                        .append(" status=").append(codes[slot])
+                        .append(" bytes=").append(values[slot])
+                        .append(" duration_us=").append(durations[slot] / 1000);
+            }
+            case EVENT_ERROR -> {
+                line.append(refs[slot]);
+                Object error = refs[slot];
+                if (error instanceof Throwable throwable) {
+                    StringWriter trace = new StringWriter();
+                    throwable.printStackTrace(new PrintWriter(trace));
+                    line.append(": ").append(trace.toString().stripTrailing());
+                }
+            }
+            default -> line.append(refs[slot]).append(' ').append(values[slot]);
+        }
+
+        out.append(line).append('\n');
+    }
+
+    private void write(StringBuilder batch) {
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+
+        if (file == null) {
+            System.out.write(bytes, 0, bytes.length);
+            System.out.flush();
+            return;
+        }
+
+        try {
+            if (channel == null || fileBytes + bytes.length > maxFileBytes)
+                rotate();
+
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            fileBytes += bytes.length;
+        } catch (IOException e) {
+            // nowhere left to log to
+            e.printStackTrace();
+        }
+    }
+
+    // file -> file.1 -> ... -> file.maxFiles, the oldest is deleted
+    private void rotate() throws IOException {
+        if (channel != null) {
+            channel.close();
+
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                Path from = file.resolveSibling(file.getFileName() + "." + i);
+                if (Files.exists(from))
+                    Files.move(from, file.resolveSibling(file.getFileName() + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (maxFiles > 0) {
+                Files.move(file, file.resolveSibling(file.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.delete(file);
+            }
+        }
+
+        // appends to what a previous run left, rotated once that is over the limit
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = channel.size();
+    }
+}
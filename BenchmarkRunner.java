@@ -0,0 +1,92 @@
+package com.ming;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal benchmark harness: warmup rounds, then measured rounds reporting time and heap
+ * allocated per operation on the running thread. Operations return a value that is sunk so
+ * the JIT cannot drop them.
+ */
+class BenchmarkRunner {
+
+    interface Op {
+        long run();
+    }
+
+    record Result(String name, double nanosPerOp, double bytesPerOp) {
+    }
+
+    private final int warmupRounds;
+    private final int rounds;
+    private final int opsPerRound;
+    private final List<Result> results = new ArrayList<>();
+
+    // written to after every op, read once at the end
+    private long sink;
+
+    BenchmarkRunner(int warmupRounds, int rounds, int opsPerRound) {
+        this.warmupRounds = warmupRounds;
+        this.rounds = rounds;
+        this.opsPerRound = opsPerRound;
+    }
+
+    Result run(String name, Op op) {
+        for (int i = 0; i < warmupRounds; i++)
+            round(op);
+
+        double nanos = 0, bytes = 0;
+        for (int i = 0; i < rounds; i++) {
+            double[] result = round(op);
+            nanos += result[0];
+            bytes += result[1];
+        }
+
+        Result result = new Result(name, nanos / rounds, bytes / rounds);
+        results.add(result);
+        System.out.printf("%-40s %10.1f ns/op %10.1f B/op%n", name, result.nanosPerOp(), result.bytesPerOp());
+
+        return result;
+    }
+
+    /**
+     * Append the results as CSV lines (label,benchmark,ns/op,B/op), e.g. one label per release.
+     */
+    void appendCsv(Path file, String label) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+            for (Result result : results)
+                out.printf("%s,%s,%.1f,%.1f%n", label, result.name(), result.nanosPerOp(), result.bytesPerOp());
+        }
+    }
+
+    long sink() {
+        return sink;
+    }
+
+    private double[] round(Op op) {
+        long bytesBefore = allocatedBytes();
+        long start = System.nanoTime();
+
+        long local = 0;
+        for (int i = 0; i < opsPerRound; i++)
+            local += op.run();
+
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - bytesBefore;
+        sink += local;
+
+        return new double[] { (double) elapsed / opsPerRound, (double) allocated / opsPerRound };
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getCurrentThreadAllocatedBytes();
+    }
+}
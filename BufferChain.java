@@ -0,0 +1,344 @@
+package com.ming;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+
+/**
+ * A byte queue made of equally sized pooled segments. Bytes are appended at the tail and
+ * drained from the head with gathering writes; the chain grows by adding segments, never by
+ * copying, and drained segments go straight back to the pool.
+ *
+ * Every segment but the tail is full, so a byte is found by index in O(1). Indexes are
+ * relative to the first unread byte.
+ */
+class BufferChain {
+
+    private final BufferPool pool;
+    private final int segmentSize;
+    private final int shift;
+    private final int mask;
+
+    private ByteBuffer[] segments = new ByteBuffer[4];
+    private int count;
+
+    // first unread byte of segments[0]
+    private int readIndex;
+
+    /**
+     * Without a pool, segments are plain heap buffers (benchmarks, blocking engines).
+     */
+    BufferChain(BufferPool pool, int segmentSize) {
+        if (Integer.bitCount(segmentSize) != 1)
+            throw new IllegalArgumentException("Segment size must be a power of two: " + segmentSize);
+
+        this.pool = pool;
+        this.segmentSize = segmentSize;
+        this.shift = Integer.numberOfTrailingZeros(segmentSize);
+        this.mask = segmentSize - 1;
+    }
+
+    int size() {
+        if (count == 0)
+            return 0;
+
+        return (count - 1) * segmentSize + segments[count - 1].position() - readIndex;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Whether a read fits without adding a segment.
+     */
+    boolean hasRoom() {
+        return count > 0 && segments[count - 1].hasRemaining();
+    }
+
+    int segmentSize() {
+        return segmentSize;
+    }
+
+    byte get(int index) {
+        int abs = readIndex + index;
+        return segments[abs >>> shift].get(abs & mask);
+    }
+
+    /**
+     * The segment holding the byte at index, for views of the chain's memory: they stay valid
+     * until the byte is skipped.
+     */
+    ByteBuffer segmentAt(int index) {
+        return segments[(readIndex + index) >>> shift];
+    }
+
+    /**
+     * The offset of the byte at index in its segment.
+     */
+    int offsetAt(int index) {
+        return (readIndex + index) & mask;
+    }
+
+    /**
+     * Copy length bytes starting at index into out.
+     */
+    void copyTo(int index, ByteBuffer out, int length) {
+        while (length > 0) {
+            int abs = readIndex + index;
+            int offset = abs & mask;
+            int n = Math.min(length, segmentSize - offset);
+
+            out.put(out.position(), segments[abs >>> shift], offset, n);
+            out.position(out.position() + n);
+
+            index += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Index of the first b in [from, to), or -1. Each segment is searched eight bytes at a
+     * time (SWAR), only the unaligned tail byte by byte.
+     */
+    int indexOf(byte b, int from, int to) {
+        long pattern = (b & 0xFFL) * 0x0101010101010101L;
+
+        int index = from;
+        while (index < to) {
+            int abs = readIndex + index;
+            int offset = abs & mask;
+            int n = Math.min(to - index, segmentSize - offset);
+
+            int found = indexOf(segments[abs >>> shift], offset, offset + n, pattern, b);
+            if (found >= 0)
+                return index + found - offset;
+
+            index += n;
+        }
+
+        return -1;
+    }
+
+    private static int indexOf(ByteBuffer segment, int from, int to, long pattern, byte b) {
+        int i = from;
+
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            // a byte equal to b becomes 0, then the exact zero byte test (no false positives),
+            // segments are big endian so the first byte is the most significant
+            long word = segment.getLong(i) ^ pattern;
+            long zeros = ~(((word & 0x7F7F7F7F7F7F7F7FL) + 0x7F7F7F7F7F7F7F7FL) | word | 0x7F7F7F7F7F7F7F7FL);
+            if (zeros != 0)
+                return i + (Long.numberOfLeadingZeros(zeros) >>> 3);
+        }
+
+        for (; i < to; i++) {
+            if (segment.get(i) == b)
+                return i;
+        }
+
+        return -1;
+    }
+
+    void copyTo(int index, byte[] out, int length) {
+        for (int i = 0; i < length; i++) {
+            out[i] = get(index + i);
+        }
+    }
+
+    /**
+     * The segment to read into. When the tail is full a new segment is added if grow is set,
+     * otherwise (or when the pool is exhausted) null is returned.
+     */
+    ByteBuffer writable(boolean grow) {
+        if (count > 0) {
+            ByteBuffer tail = segments[count - 1];
+            if (tail.hasRemaining())
+                return tail;
+
+            if (!grow)
+                return null;
+        }
+
+        return addSegment();
+    }
+
+    boolean put(byte[] src) {
+        return put(ByteBuffer.wrap(src));
+    }
+
+    /**
+     * Append everything remaining in src, false if the pool ran out of buffers on the way.
+     */
+    boolean put(ByteBuffer src) {
+        while (src.hasRemaining()) {
+            ByteBuffer tail = writable(true);
+            if (tail == null)
+                return false;
+
+            int n = Math.min(src.remaining(), tail.remaining());
+            tail.put(tail.position(), src, src.position(), n);
+            tail.position(tail.position() + n);
+            src.position(src.position() + n);
+        }
+
+        return true;
+    }
+
+    /**
+     * Gathering write of everything in the chain, drained segments are released.
+     */
+    long writeTo(GatheringByteChannel channel) throws IOException {
+        if (count == 0)
+            return 0;
+
+        for (int i = 0; i < count; i++) {
+            segments[i].flip();
+        }
+        segments[0].position(readIndex);
+
+        long written;
+        try {
+            written = channel.write(segments, 0, count);
+        } finally {
+            restoreWriteMode();
+        }
+
+        return written;
+    }
+
+    /**
+     * Scattering read of up to about max bytes into the tail and as many new segments as
+     * needed, the ones left empty go back to the pool. 0 when the pool is exhausted, -1 at the
+     * end of the stream.
+     */
+    long readFrom(ScatteringByteChannel channel, int max) throws IOException {
+        int first = count > 0 && segments[count - 1].hasRemaining() ? count - 1 : count;
+        int room = first < count ? segments[first].remaining() : 0;
+
+        while (room < max && addSegment() != null)
+            room += segmentSize;
+
+        if (first == count)
+            return 0;
+
+        try {
+            return channel.read(segments, first, count - first);
+        } finally {
+            while (count > 0 && segments[count - 1].position() == 0)
+                releaseTail();
+        }
+    }
+
+    /**
+     * Move the first n bytes to the end of target, drained segments are released. False if
+     * target's pool ran out on the way, what was not moved stays here.
+     */
+    boolean transferTo(BufferChain target, int n) {
+        n = Math.min(n, size());
+
+        while (n > 0) {
+            ByteBuffer tail = target.writable(true);
+            if (tail == null)
+                return false;
+
+            ByteBuffer head = segments[0];
+            int k = Math.min(n, Math.min(head.position() - readIndex, tail.remaining()));
+            tail.put(tail.position(), head, readIndex, k);
+            tail.position(tail.position() + k);
+
+            skip(k);
+            n -= k;
+        }
+
+        return true;
+    }
+
+    /**
+     * Drop the first n bytes without writing them.
+     */
+    void skip(int n) {
+        n = Math.min(n, size());
+
+        while (n > 0) {
+            int k = Math.min(n, segments[0].position() - readIndex);
+            readIndex += k;
+            n -= k;
+
+            if (readIndex == segments[0].position())
+                releaseHead();
+        }
+    }
+
+    void clear() {
+        release();
+    }
+
+    /**
+     * Give every segment back to the pool, the chain stays usable.
+     */
+    void release() {
+        for (int i = 0; i < count; i++) {
+            if (pool != null)
+                pool.release(segments[i]);
+            segments[i] = null;
+        }
+
+        count = 0;
+        readIndex = 0;
+    }
+
+    private ByteBuffer addSegment() {
+        ByteBuffer segment = pool == null ? ByteBuffer.allocate(segmentSize) : pool.lease(segmentSize);
+        if (segment == null)
+            return null;
+
+        if (count == segments.length) {
+            ByteBuffer[] grown = new ByteBuffer[count << 1];
+            System.arraycopy(segments, 0, grown, 0, count);
+            segments = grown;
+        }
+
+        segments[count++] = segment;
+
+        return segment;
+    }
+
+    // segments are in read mode after a write: position = consumed, limit = filled
+    private void restoreWriteMode() {
+        int drained = 0;
+        while (drained < count && !segments[drained].hasRemaining())
+            drained++;
+
+        int consumed = drained < count ? segments[drained].position() : 0;
+
+        for (int i = 0; i < count; i++) {
+            ByteBuffer segment = segments[i];
+            int filled = segment.limit();
+            segment.limit(segment.capacity()).position(filled);
+        }
+
+        // every drained segment goes back to the pool
+        for (int i = 0; i < drained; i++)
+            releaseHead();
+
+        readIndex = consumed;
+    }
+
+    private void releaseTail() {
+        if (pool != null)
+            pool.release(segments[count - 1]);
+
+        segments[--count] = null;
+    }
+
+    private void releaseHead() {
+        if (pool != null)
+            pool.release(segments[0]);
+
+        System.arraycopy(segments, 1, segments, 0, count - 1);
+        segments[--count] = null;
+        readIndex = 0;
+    }
+}
@@ -0,0 +1,150 @@
+package com.ming;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Size-classed pool of direct buffers carved out of 1 MB off-heap slabs. A pool belongs to
+ * one reactor and is only used on its thread, so there is no locking. Slabs are never freed,
+ * the pool stops growing at its capacity and lease() returns null instead. A reader that finds
+ * it exhausted stops reading and waits with onRelease() for buffers to come back.
+ */
+class BufferPool {
+
+    static final int[] SIZE_CLASSES = { 2048, 8192, 16384, 65536 };
+
+    private static final int SLAB_SIZE = 1 << 20;
+
+    private final long capacity;
+    private final ArrayDeque<ByteBuffer>[] freeLists;
+
+    // written on the reactor's thread only, read by the metrics scrape and reports too
+    private volatile long offHeapBytes;
+    private volatile long leasedBytes;
+
+    private long hits;
+    private long misses;
+    private long exhausted;
+
+    // run by wakeWaiters() once a buffer came back after a lease failed
+    private final ArrayDeque<Runnable> waiters = new ArrayDeque<>();
+    private boolean released;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BufferPool(long capacity) {
+        this.capacity = capacity;
+        this.freeLists = new ArrayDeque[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            freeLists[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * A cleared buffer of exactly size bytes (one of SIZE_CLASSES), or null if the pool is at
+     * its capacity: the caller has to back off until buffers are released.
+     */
+    ByteBuffer lease(int size) {
+        int sizeClass = sizeClassOf(size);
+        ArrayDeque<ByteBuffer> freeList = freeLists[sizeClass];
+
+        ByteBuffer buffer = freeList.poll();
+        if (buffer != null) {
+            hits++;
+        } else if (carveSlab(sizeClass)) {
+            misses++;
+            buffer = freeList.poll();
+        } else {
+            exhausted++;
+            released = false;
+            return null;
+        }
+
+        leasedBytes += buffer.capacity();
+
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        leasedBytes -= buffer.capacity();
+        freeLists[sizeClassOf(buffer.capacity())].push(buffer.clear());
+        released = true;
+    }
+
+    /**
+     * Whether a buffer of size bytes can be leased right now.
+     */
+    boolean hasFree(int size) {
+        int sizeClass = sizeClassOf(size);
+        return !freeLists[sizeClass].isEmpty() || offHeapBytes + SLAB_SIZE <= capacity;
+    }
+
+    /**
+     * Run waiter once buffers are released, e.g. to read again from a connection that stopped
+     * reading when the pool ran out.
+     */
+    void onRelease(Runnable waiter) {
+        waiters.add(waiter);
+    }
+
+    /**
+     * Run the waiters if buffers came back since the pool ran out, called by the reactor once
+     * per loop rather than from release() in the middle of someone else's buffer handling.
+     */
+    void wakeWaiters() {
+        if (!released || waiters.isEmpty())
+            return;
+
+        released = false;
+        for (int n = waiters.size(); n > 0; n--)
+            waiters.poll().run();
+    }
+
+    private boolean carveSlab(int sizeClass) {
+        if (offHeapBytes + SLAB_SIZE > capacity)
+            return false;
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+        offHeapBytes += SLAB_SIZE;
+
+        int size = SIZE_CLASSES[sizeClass];
+        for (int offset = 0; offset < SLAB_SIZE; offset += size) {
+            freeLists[sizeClass].add(slab.slice(offset, size));
+        }
+
+        return true;
+    }
+
+    private static int sizeClassOf(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (SIZE_CLASSES[i] == size)
+                return i;
+        }
+
+        throw new IllegalArgumentException("Not a pooled buffer size: " + size);
+    }
+
+    long getOffHeapBytes() {
+        return offHeapBytes;
+    }
+
+    long getLeasedBytes() {
+        return leasedBytes;
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+    long getExhausted() {
+        return exhausted;
+    }
+
+    double hitRate() {
+        long leases = hits + misses;
+        return leases == 0 ? 1.0 : (double) hits / leases;
+    }
+}
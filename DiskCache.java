@@ -0,0 +1,443 @@
+package com.ming;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Second cache tier on local disk. Responses are appended to fixed size segment files that
+ * are memory-mapped, an entry's data is a slice of its segment's mapping and is written to
+ * clients from the page cache like an in-memory entry, without a copy on the heap. The index
+ * lives in memory and is rebuilt from the segments on startup. The oldest segments are dropped
+ * when the disk budget is used up.
+ *
+ * Records are only ever written by one background thread: puts are queued to it, and it moves
+ * the live records out of mostly dead segments between them. Bytes are copied into the mapping
+ * without the lock, nothing reads them before the record is in the index; lookups only wait for
+ * index updates. Puts beyond MAX_PENDING_BYTES in the queue are dropped.
+ *
+ * Record: magic, CRC32C of the rest, key length, validators length (-1 for none), data length,
+ * header size, expiresAt, bornAt, key, validators, data. Nothing orders writes to a mapping
+ * on a crash, a record is only read back on rebuild if its checksum matches; the scan of a
+ * segment stops at the first one that does not.
+ */
+class DiskCache {
+
+    private static final int MAGIC = 0x4d434333;
+    private static final int RECORD_HEADER_SIZE = 40;
+
+    // the checksum covers the record from here on
+    private static final int CHECKED_OFFSET = 8;
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final long COMPACTION_INTERVAL_MILLIS = 10_000;
+    private static final double COMPACTION_LIVE_RATIO = 0.5;
+    private static final long MAX_PENDING_BYTES = 64 << 20;
+
+    private static final class Segment {
+        final long id;
+        final Path path;
+        final MappedByteBuffer map;
+
+        // the writer's alone
+        int writePos;
+
+        // guarded by the cache
+        long liveBytes;
+
+        Segment(long id, Path path, MappedByteBuffer map) {
+            this.id = id;
+            this.path = path;
+            this.map = map;
+        }
+    }
+
+    private static final class Record {
+        final Segment segment;
+        final int offset;
+        final int size;
+        final ResponseCache.Entry entry;
+
+        Record(Segment segment, int offset, int size, ResponseCache.Entry entry) {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+            this.entry = entry;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    // guarded by this
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final Map<String, Record> index = new HashMap<>();
+
+    // only changed by the writer
+    private volatile Segment active;
+
+    private final ScheduledExecutorService writer;
+    private final CRC32C crc = new CRC32C();
+
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * maxBytes is rounded down to whole segments, at least two so there is one to compact into.
+     */
+    DiskCache(Path directory, int segmentSize, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(2, maxBytes / segmentSize);
+
+        Files.createDirectories(directory);
+        rebuild();
+
+        this.writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "disk-cache-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleWithFixedDelay(this::compact, COMPACTION_INTERVAL_MILLIS,
+                COMPACTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The cached entry for key if it is fresh or can be revalidated, null otherwise.
+     */
+    synchronized ResponseCache.Entry get(String key, long now) {
+        Record record = index.get(key);
+        if (record == null)
+            return null;
+
+        if (!record.entry.isFresh(now) && record.entry.validators == null) {
+            drop(record);
+            return null;
+        }
+
+        return record.entry;
+    }
+
+    /**
+     * Queue entry to be appended, replacing any older record of its key once it is written.
+     * False if too much is queued already.
+     */
+    boolean put(ResponseCache.Entry entry) {
+        int size = entry.data.remaining();
+        if (pendingBytes.addAndGet(size) > MAX_PENDING_BYTES) {
+            pendingBytes.addAndGet(-size);
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        try {
+            writer.execute(() -> {
+                try {
+                    write(entry, null);
+                } finally {
+                    pendingBytes.addAndGet(-size);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed
+            pendingBytes.addAndGet(-size);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Write what is queued, then stop writing. Waits up to timeoutMillis.
+     */
+    void close(long timeoutMillis) throws InterruptedException {
+        writer.shutdown();
+        writer.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+
+        Segment segment = active;
+        if (segment != null)
+            segment.map.force();
+    }
+
+    // on the writer: append entry to the active segment, indexed unless moving is no longer its
+    // record. False if it does not fit a segment or the disk failed.
+    private boolean write(ResponseCache.Entry entry, Record moving) {
+        byte[] key = entry.key.getBytes(StandardCharsets.UTF_8);
+        byte[] validators = entry.validators;
+        int dataLength = entry.data.remaining();
+
+        int size = RECORD_HEADER_SIZE + key.length + (validators == null ? 0 : validators.length) + dataLength;
+        if (size > segmentSize)
+            return false;
+
+        try {
+            if (active == null || active.writePos + size > segmentSize)
+                roll();
+        } catch (IOException e) {
+            AsyncLog.get().error("disk cache segment roll failed", e);
+            return false;
+        }
+
+        Record record = append(active, entry.key, key, validators, entry.data.duplicate(), entry.headerSize,
+                entry.expiresAt(), entry.bornAt());
+
+        synchronized (this) {
+            // replaced, dropped or deleted while it was copied, the copy stays dead
+            if (moving != null && index.get(entry.key) != moving)
+                return true;
+
+            Record old = index.put(entry.key, record);
+            if (old != null)
+                old.segment.liveBytes -= old.size;
+            record.segment.liveBytes += record.size;
+        }
+
+        return true;
+    }
+
+    synchronized int size() {
+        return index.size();
+    }
+
+    synchronized long getDiskBytes() {
+        return (long) segments.size() * segmentSize;
+    }
+
+    /**
+     * Puts dropped because the writer was too far behind.
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    private Record append(Segment segment, String keyString, byte[] key, byte[] validators, ByteBuffer data,
+                          int headerSize, long expiresAt, long bornAt) {
+        MappedByteBuffer map = segment.map;
+        int offset = segment.writePos;
+        int dataLength = data.remaining();
+
+        map.putInt(offset + 8, key.length);
+        map.putInt(offset + 12, validators == null ? -1 : validators.length);
+        map.putInt(offset + 16, dataLength);
+        map.putInt(offset + 20, headerSize);
+        map.putLong(offset + 24, expiresAt);
+        map.putLong(offset + 32, bornAt);
+
+        int pos = offset + RECORD_HEADER_SIZE;
+        map.put(pos, key);
+        pos += key.length;
+        if (validators != null) {
+            map.put(pos, validators);
+            pos += validators.length;
+        }
+        int dataOffset = pos;
+        map.put(pos, data, data.position(), dataLength);
+        pos += dataLength;
+
+        map.putInt(offset + 4, checksum(map, offset + CHECKED_OFFSET, pos));
+        map.putInt(offset, MAGIC);
+
+        segment.writePos = pos;
+
+        ResponseCache.Entry entry = new ResponseCache.Entry(keyString,
+                map.slice(dataOffset, dataLength).asReadOnlyBuffer(), validators, expiresAt, headerSize, bornAt);
+
+        return new Record(segment, offset, pos - offset, entry);
+    }
+
+    // a new active segment, the oldest ones go when over budget
+    private void roll() throws IOException {
+        long id;
+        synchronized (this) {
+            id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        }
+
+        Segment segment = open(id);
+        synchronized (this) {
+            segments.put(id, segment);
+        }
+        active = segment;
+
+        while (true) {
+            Segment oldest;
+            synchronized (this) {
+                if (segments.size() <= maxSegments)
+                    return;
+                oldest = segments.firstEntry().getValue();
+            }
+            delete(oldest);
+        }
+    }
+
+    private int checksum(MappedByteBuffer map, int from, int to) {
+        crc.reset();
+        crc.update(map.slice(from, to - from));
+
+        return (int) crc.getValue();
+    }
+
+    private Segment open(long id) throws IOException {
+        Path path = directory.resolve(String.format("%016x", id) + SEGMENT_SUFFIX);
+
+        // the mapping stays valid after the channel is closed and after the file is deleted
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return new Segment(id, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        }
+    }
+
+    private void delete(Segment segment) {
+        synchronized (this) {
+            segments.remove(segment.id);
+
+            Iterator<Record> records = index.values().iterator();
+            while (records.hasNext()) {
+                if (records.next().segment == segment)
+                    records.remove();
+            }
+        }
+
+        if (active == segment)
+            active = null;
+
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            AsyncLog.get().error("disk cache segment delete failed", e);
+        }
+    }
+
+    private void drop(Record record) {
+        index.remove(record.entry.key);
+        record.segment.liveBytes -= record.size;
+    }
+
+    // scan every segment in order, a later record of a key replaces an earlier one
+    private void rebuild() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    ids.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        ids.sort(null);
+
+        for (long id : ids) {
+            Segment segment = open(id);
+            segments.put(id, segment);
+            scan(segment);
+            active = segment;
+        }
+    }
+
+    private void scan(Segment segment) {
+        MappedByteBuffer map = segment.map;
+        int offset = 0;
+
+        while (offset + RECORD_HEADER_SIZE <= segmentSize && map.getInt(offset) == MAGIC) {
+            int keyLength = map.getInt(offset + 8);
+            int validatorsLength = map.getInt(offset + 12);
+            int dataLength = map.getInt(offset + 16);
+            int headerSize = map.getInt(offset + 20);
+            long expiresAt = map.getLong(offset + 24);
+            long bornAt = map.getLong(offset + 32);
+
+            int size = RECORD_HEADER_SIZE + keyLength + Math.max(validatorsLength, 0) + dataLength;
+            if (keyLength < 0 || dataLength < 0 || size < 0 || offset + size > segmentSize ||
+                    headerSize < 4 || headerSize > dataLength)
+                break;
+
+            // torn by a crash, whatever follows it is not trusted either
+            if (map.getInt(offset + 4) != checksum(map, offset + CHECKED_OFFSET, offset + size))
+                break;
+
+            int pos = offset + RECORD_HEADER_SIZE;
+            byte[] key = new byte[keyLength];
+            map.get(pos, key);
+            pos += keyLength;
+
+            byte[] validators = null;
+            if (validatorsLength >= 0) {
+                validators = new byte[validatorsLength];
+                map.get(pos, validators);
+                pos += validatorsLength;
+            }
+
+            String keyString = new String(key, StandardCharsets.UTF_8);
+            ResponseCache.Entry entry = new ResponseCache.Entry(keyString,
+                    map.slice(pos, dataLength).asReadOnlyBuffer(), validators, expiresAt, headerSize, bornAt);
+
+            Record old = index.put(keyString, new Record(segment, offset, size, entry));
+            if (old != null)
+                old.segment.liveBytes -= old.size;
+
+            segment.liveBytes += size;
+            offset += size;
+        }
+
+        segment.writePos = offset;
+    }
+
+    /**
+     * Move the live records of sealed, mostly dead segments to the active one and delete them.
+     * Runs on the writer between puts, records are copied without the lock so lookups only
+     * wait for the index updates.
+     */
+    private void compact() {
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.liveBytes < segmentSize * COMPACTION_LIVE_RATIO)
+                    candidates.add(segment);
+            }
+        }
+
+        for (Segment segment : candidates) {
+            List<Record> live = new ArrayList<>();
+            synchronized (this) {
+                if (segments.get(segment.id) != segment)
+                    continue;
+
+                for (Record record : index.values()) {
+                    if (record.segment == segment)
+                        live.add(record);
+                }
+            }
+
+            for (Record record : live)
+                write(record.entry, record);
+
+            // a roll may have deleted it already
+            if (segment != active)
+                delete(segment);
+        }
+
+        Segment segment = active;
+        if (segment != null)
+            segment.map.force();
+    }
+}
@@ -0,0 +1,190 @@
+package com.ming;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous lookups with a bounded TTL cache in front of a DnsResolver. Lookups run on a
+ * small pool of resolver threads, concurrent lookups of the same host share one query, and the
+ * answer is delivered through the executor of the caller (its reactor).
+ */
+class DnsCache {
+
+    interface Callback {
+        /**
+         * Exactly one of addresses and error is set.
+         */
+        void onResolved(InetAddress[] addresses, UnknownHostException error);
+    }
+
+    private static class Entry {
+        final InetAddress[] addresses;
+        final UnknownHostException error;
+        final long expiresAt;
+
+        Entry(InetAddress[] addresses, UnknownHostException error, long expiresAt) {
+            this.addresses = addresses;
+            this.error = error;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // waiters of one in-flight lookup
+    private static class Lookup {
+        private final List<Runnable> waiters = new ArrayList<>(2);
+        private Entry result;
+
+        synchronized boolean addWaiter(Runnable waiter) {
+            if (result != null)
+                return false;
+
+            waiters.add(waiter);
+            return true;
+        }
+
+        synchronized List<Runnable> complete(Entry result) {
+            this.result = result;
+            return waiters;
+        }
+    }
+
+    private final DnsResolver resolver;
+    private final long positiveTtlMillis;
+    private final long negativeTtlMillis;
+    private final int maxEntries;
+    private final ExecutorService lookups;
+
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final Map<String, Lookup> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    DnsCache(DnsResolver resolver, long positiveTtlMillis, long negativeTtlMillis, int maxEntries, int threads) {
+        this.resolver = resolver;
+        this.positiveTtlMillis = positiveTtlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.maxEntries = maxEntries;
+
+        AtomicInteger threadId = new AtomicInteger();
+        this.lookups = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "dns-resolver-" + threadId.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * The cached addresses of host, or null if it has to be looked up with resolve().
+     * A cached negative answer is thrown.
+     */
+    InetAddress[] cached(String host) throws UnknownHostException {
+        Entry entry = cache.get(host);
+        if (entry == null || entry.expiresAt <= System.currentTimeMillis())
+            return null;
+
+        hits.incrementAndGet();
+
+        if (entry.error != null)
+            throw entry.error;
+
+        return entry.addresses;
+    }
+
+    /**
+     * Look host up off the calling thread, callback runs on executor.
+     */
+    void resolve(String host, Executor executor, Callback callback) {
+        try {
+            InetAddress[] addresses = cached(host);
+            if (addresses != null) {
+                executor.execute(() -> callback.onResolved(addresses, null));
+                return;
+            }
+        } catch (UnknownHostException e) {
+            executor.execute(() -> callback.onResolved(null, e));
+            return;
+        }
+
+        Lookup lookup = new Lookup();
+        Lookup existing = inFlight.putIfAbsent(host, lookup);
+        if (existing != null)
+            lookup = existing;
+
+        Lookup joined = lookup;
+        Runnable waiter = () -> executor.execute(() -> callback.onResolved(joined.result.addresses, joined.result.error));
+        if (!lookup.addWaiter(waiter)) {
+            // completed between the map lookup and now
+            waiter.run();
+            return;
+        }
+
+        if (existing == null) {
+            misses.incrementAndGet();
+            lookups.execute(() -> runLookup(host, joined));
+        }
+    }
+
+    private void runLookup(String host, Lookup lookup) {
+        Entry entry;
+        try {
+            entry = new Entry(resolver.resolve(host), null, System.currentTimeMillis() + positiveTtlMillis);
+        } catch (UnknownHostException e) {
+            entry = new Entry(null, e, System.currentTimeMillis() + negativeTtlMillis);
+        } catch (RuntimeException e) {
+            UnknownHostException error = new UnknownHostException(host + ": " + e.getMessage());
+            entry = new Entry(null, error, System.currentTimeMillis() + negativeTtlMillis);
+        }
+
+        if (entry.addresses != null && entry.addresses.length == 0)
+            entry = new Entry(null, new UnknownHostException(host), System.currentTimeMillis() + negativeTtlMillis);
+
+        put(host, entry);
+        inFlight.remove(host);
+
+        for (Runnable waiter : lookup.complete(entry)) {
+            waiter.run();
+        }
+    }
+
+    private void put(String host, Entry entry) {
+        if (cache.size() >= maxEntries)
+            evict();
+
+        cache.put(host, entry);
+    }
+
+    // expired entries first, then whatever comes first until there is room again
+    private void evict() {
+        long now = System.currentTimeMillis();
+        cache.values().removeIf(entry -> entry.expiresAt <= now);
+
+        Iterator<String> iterator = cache.keySet().iterator();
+        while (cache.size() >= maxEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    int size() {
+        return cache.size();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+}
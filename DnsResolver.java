@@ -0,0 +1,15 @@
+package com.ming;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A blocking name lookup. DnsCache runs it off the event loop, so an implementation may take
+ * its time; tests can plug in a stub that answers from a map.
+ */
+interface DnsResolver {
+
+    DnsResolver SYSTEM = InetAddress::getAllByName;
+
+    InetAddress[] resolve(String host) throws UnknownHostException;
+}
@@ -0,0 +1,166 @@
+package com.ming;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A request header on its way to the upstream, as views written with gathering writes. The
+ * client's header lines are written from its buffer as they are, only the bytes the proxy
+ * changes go into patches of its own. One per client connection, reused for all its requests.
+ *
+ * The views share the memory of the client's buffer, the header may only be skipped there once
+ * it is written. The views of a segment are kept and reused whenever the segment comes back, so
+ * a header in a pooled buffer is forwarded without allocating.
+ */
+class ForwardedHeader {
+
+    private static final int CACHED_VIEWS = 8;
+    private static final int INITIAL_PATCH_SIZE = 256;
+
+    // the header in order, views[next, count) is left to write
+    private ByteBuffer[] views = new ByteBuffer[16];
+    private int[] starts = new int[16];
+    private int count;
+    private int next;
+
+    // duplicates of the segments seen so far, each used at most once per header
+    private final ByteBuffer[] sources = new ByteBuffer[CACHED_VIEWS];
+    private final ByteBuffer[] duplicates = new ByteBuffer[CACHED_VIEWS];
+    private final int[] usedIn = new int[CACHED_VIEWS];
+    private int generation = 1;
+
+    private ByteBuffer[] patches = new ByteBuffer[2];
+    private int patchCount;
+
+    /**
+     * Start over for the next header.
+     */
+    void clear() {
+        count = 0;
+        next = 0;
+        patchCount = 0;
+        generation++;
+    }
+
+    /**
+     * Add length bytes of chain starting at index, a view per segment they span.
+     */
+    void add(BufferChain chain, int index, int length) {
+        while (length > 0) {
+            ByteBuffer segment = chain.segmentAt(index);
+            int offset = chain.offsetAt(index);
+            int n = Math.min(length, chain.segmentSize() - offset);
+
+            addView(viewOf(segment).limit(offset + n).position(offset));
+
+            index += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * An empty patch with room for at least room bytes, added as the next view by endPatch()
+     * once it is filled.
+     */
+    ByteBuffer beginPatch(int room) {
+        if (patchCount == patches.length) {
+            ByteBuffer[] grown = new ByteBuffer[patchCount << 1];
+            System.arraycopy(patches, 0, grown, 0, patchCount);
+            patches = grown;
+        }
+
+        ByteBuffer patch = patches[patchCount];
+        if (patch == null || patch.capacity() < room) {
+            patch = ByteBuffer.allocate(Math.max(room, INITIAL_PATCH_SIZE));
+            patches[patchCount] = patch;
+        }
+
+        return patch.clear();
+    }
+
+    void endPatch() {
+        addView(patches[patchCount++].flip());
+    }
+
+    boolean hasRemaining() {
+        return next < count;
+    }
+
+    /**
+     * Bytes in the header, written or not.
+     */
+    int length() {
+        int length = 0;
+        for (int i = 0; i < count; i++)
+            length += views[i].limit() - starts[i];
+
+        return length;
+    }
+
+    /**
+     * Gathering write of what is left, the bytes written.
+     */
+    long writeTo(GatheringByteChannel channel) throws IOException {
+        long written = channel.write(views, next, count - next);
+        while (next < count && !views[next].hasRemaining())
+            next++;
+
+        return written;
+    }
+
+    /**
+     * Write it all again, as long as the client's buffer still holds the header.
+     */
+    void rewind() {
+        for (int i = 0; i < count; i++)
+            views[i].position(starts[i]);
+
+        next = 0;
+    }
+
+    private void addView(ByteBuffer view) {
+        if (!view.hasRemaining())
+            return;
+
+        if (count == views.length) {
+            ByteBuffer[] grown = new ByteBuffer[count << 1];
+            System.arraycopy(views, 0, grown, 0, count);
+            views = grown;
+
+            int[] grownStarts = new int[count << 1];
+            System.arraycopy(starts, 0, grownStarts, 0, count);
+            starts = grownStarts;
+        }
+
+        views[count] = view;
+        starts[count] = view.position();
+        count++;
+    }
+
+    // a view of segment not used by this header yet, a cached one if there is
+    private ByteBuffer viewOf(ByteBuffer segment) {
+        int victim = -1;
+        for (int i = 0; i < CACHED_VIEWS; i++) {
+            if (usedIn[i] == generation)
+                continue;
+
+            if (sources[i] == segment) {
+                usedIn[i] = generation;
+                return duplicates[i].clear();
+            }
+
+            if (victim < 0 || sources[i] == null)
+                victim = i;
+        }
+
+        ByteBuffer view = segment.duplicate();
+        if (victim >= 0) {
+            sources[victim] = segment;
+            duplicates[victim] = view;
+            usedIn[victim] = generation;
+        }
+
+        return view;
+    }
+}
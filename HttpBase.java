@@ -10,39 +10,544 @@ public abstract class HttpBase {
     public static final String PROXY_VERSION = "MYProxy/1.0";
     public static final String CONNECTION = "Connection";
     public static final String KEEP_ALIVE = "Keep-Alive";
+    public static final String CONTENT_LENGTH = "Content-Length";
+    public static final String TRANSFER_ENCODING = "Transfer-Encoding";
 
-    public static int endOfEmptyLine(byte[] array, int end) {
-        byte[] target = HDR_BODY_SEPARATOR.getBytes(StandardCharsets.UTF_8);
-        int len = target.length;
+    /**
+     * Results of an incremental header parse
+     */
+    public static final int PARSE_INCOMPLETE = 0;
+    public static final int PARSE_DONE = 1;
+    public static final int PARSE_ERROR = 2;
 
-        if (end < len)
-            return -1;
+    public static final int MAX_HEADERS = 64;
+
+    /**
+     * How the end of the body is found
+     */
+    public static final int BODY_NONE = 0;
+    public static final int BODY_LENGTH = 1;
+    public static final int BODY_CHUNKED = 2;
+    public static final int BODY_UNTIL_CLOSE = 3;
+
+    /**
+     * Chunked body states
+     */
+    private static final int CHUNK_SIZE = 0;
+    private static final int CHUNK_EXT = 1;
+    private static final int CHUNK_SIZE_LF = 2;
+    private static final int CHUNK_DATA = 3;
+    private static final int CHUNK_DATA_CR = 4;
+    private static final int CHUNK_DATA_LF = 5;
+    private static final int TRAILER_LINE_START = 6;
+    private static final int TRAILER_LINE = 7;
+    private static final int TRAILER_END_LF = 8;
+
+    /**
+     * A header block not complete within this many bytes is a parse error
+     */
+    public static final int DEFAULT_MAX_HEADER_SIZE = 64 * 1024;
+
+    static final byte CR = '\r';
+    static final byte LF = '\n';
+    static final byte SP = ' ';
+    static final byte HT = '\t';
+    static final byte COLON = ':';
+
+    static final byte[] CONNECTION_BYTES = lowerCaseBytes(CONNECTION);
+    static final byte[] CONTENT_LENGTH_BYTES = lowerCaseBytes(CONTENT_LENGTH);
+    static final byte[] TRANSFER_ENCODING_BYTES = lowerCaseBytes(TRANSFER_ENCODING);
+    static final byte[] CHUNKED_BYTES = lowerCaseBytes("chunked");
+
+    // transfer codings a message may be framed with, chunked last
+    private static final byte[][] CODING_BYTES = {
+            CHUNKED_BYTES, lowerCaseBytes("gzip"), lowerCaseBytes("x-gzip"), lowerCaseBytes("deflate"),
+            lowerCaseBytes("compress"), lowerCaseBytes("x-compress")
+    };
+
+    /**
+     * Header views: offsets and lengths into the buffer being parsed, nothing is copied
+     */
+    protected BufferChain buffer;
+    protected int headerCount;
+    protected final int[] nameOffsets = new int[MAX_HEADERS];
+    protected final int[] nameLengths = new int[MAX_HEADERS];
+    protected final int[] valueOffsets = new int[MAX_HEADERS];
+    protected final int[] valueLengths = new int[MAX_HEADERS];
+
+    public int hdrSize;
+
+    /**
+     * Body framing: the bytes are fed as they pass through, the body itself is never
+     * buffered, only where the message ends is tracked
+     */
+    public long contentLen = -1;
+    public boolean chunked;
+
+    // framing headers the hops after the proxy could read differently, the header is rejected
+    protected boolean framingError;
+    public int bodyType;
+    public boolean complete;
+    public long messageLength;
+
+    private long bodyRead;
+    private long remaining;
+    private int chunkState;
+    private int chunkSizeDigits;
+
+    private int maxHeaderSize = DEFAULT_MAX_HEADER_SIZE;
+
+    // incremental parse state, kept across reads
+    private int headerStart;
+    private int lineStart;
+    private int scanPos;
+    private boolean startLineParsed;
+
+    /**
+     * Parse the header block in buffer[0, end), the single entry point for request and
+     * response headers. Only bytes not seen by the previous call are scanned, so it can be
+     * called again after every read until it returns PARSE_DONE; a line (or its CRLF) split
+     * across reads is picked up where the scan stopped. A header block longer than
+     * maxHeaderSize is a PARSE_ERROR.
+     * On success hdrSize is the length of the header block including the empty line.
+     */
+    public int parse(BufferChain buffer, int end) {
+        this.buffer = buffer;
+
+        int limit = Math.min(end, headerStart + maxHeaderSize);
+
+        while (true) {
+            int lf = buffer.indexOf(LF, scanPos, limit);
+            if (lf < 0) {
+                scanPos = limit;
+                return limit - headerStart >= maxHeaderSize ? PARSE_ERROR : PARSE_INCOMPLETE;
+            }
 
-        return indexOfIn(target, len, array, end) + len;
+            int lineEnd = lf > lineStart && buffer.get(lf - 1) == CR ? lf - 1 : lf;
+            int lineLen = lineEnd - lineStart;
+
+            if (!startLineParsed) {
+                // empty lines before the start line are ignored
+                if (lineLen > 0) {
+                    if (!parseStartLine(lineStart, lineLen))
+                        return PARSE_ERROR;
+
+                    startLineParsed = true;
+                }
+            } else if (lineLen == 0) {
+                hdrSize = lf + 1;
+                return PARSE_DONE;
+            } else if (!parseHeaderLine(lineStart, lineEnd)) {
+                return PARSE_ERROR;
+            }
+
+            lineStart = lf + 1;
+            scanPos = lineStart;
+        }
+    }
+
+    /**
+     * Forget the previous message, keeping the view arrays for the next one.
+     */
+    public void reset() {
+        buffer = null;
+        headerCount = 0;
+        hdrSize = 0;
+        headerStart = 0;
+        lineStart = 0;
+        scanPos = 0;
+        startLineParsed = false;
+        contentLen = -1;
+        chunked = false;
+        framingError = false;
+        bodyType = BODY_NONE;
+        complete = false;
+        messageLength = 0;
+        bodyRead = 0;
+        remaining = 0;
+        chunkState = CHUNK_SIZE;
+        chunkSizeDigits = 0;
+    }
+
+    /**
+     * Parse another header block that starts at offset of the same buffer, e.g. the final
+     * response following an interim 1xx one. hdrSize keeps counting from the buffer start.
+     */
+    protected void restartAt(int offset) {
+        headerCount = 0;
+        headerStart = offset;
+        lineStart = offset;
+        scanPos = offset;
+        startLineParsed = false;
     }
 
-    private static int indexOfIn(byte[] target, int len1, byte[] in, int len2) {
-        int res = -1;
+    public void setMaxHeaderSize(int maxHeaderSize) {
+        this.maxHeaderSize = maxHeaderSize;
+    }
+
+    protected abstract boolean parseStartLine(int offset, int length);
+
+    /**
+     * Called once per header after its view is stored.
+     */
+    protected void onHeader(int index) {
+    }
+
+    private boolean parseHeaderLine(int from, int to) {
+        if (headerCount == MAX_HEADERS)
+            return false;
+
+        int colon = indexOf(COLON, from, to);
+        if (colon <= from)
+            return false;
+
+        // optional whitespace around the value, any amount
+        int valueFrom = colon + 1;
+        while (valueFrom < to && isWhitespace(buffer.get(valueFrom)))
+            valueFrom++;
+
+        int valueTo = to;
+        while (valueTo > valueFrom && isWhitespace(buffer.get(valueTo - 1)))
+            valueTo--;
 
-        for (int i = 0; i < len2; i++) {
-            if (areBytesEqual(target, 0, in, i, len1))
+        int index = headerCount++;
+        nameOffsets[index] = from;
+        nameLengths[index] = colon - from;
+        valueOffsets[index] = valueFrom;
+        valueLengths[index] = valueTo - valueFrom;
+
+        onHeader(index);
+
+        return !framingError;
+    }
+
+    /**
+     * Content-Length and Transfer-Encoding, shared by requests and responses. False for any
+     * other header. A Content-Length that is not a number or comes twice, even with the same
+     * value, and a coding that is unknown or follows chunked are a framing error: they are
+     * how a request is smuggled past a proxy that frames bodies itself.
+     */
+    protected boolean onFramingHeader(int index) {
+        if (nameIs(index, CONTENT_LENGTH_BYTES)) {
+            long value = parseDecimal(valueOffsets[index], valueLengths[index]);
+            if (value < 0 || contentLen >= 0)
+                framingError = true;
+
+            contentLen = value;
+        } else if (nameIs(index, TRANSFER_ENCODING_BYTES)) {
+            parseCodings(valueOffsets[index], valueOffsets[index] + valueLengths[index]);
+        } else {
+            return false;
+        }
+
+        return true;
+    }
+
+    // the comma-separated codings of a Transfer-Encoding, across all its headers
+    private void parseCodings(int from, int end) {
+        while (from < end) {
+            int comma = indexOf((byte) ',', from, end);
+            int to = comma < 0 ? end : comma;
+
+            int start = from;
+            while (start < to && isWhitespace(buffer.get(start)))
+                start++;
+            int stop = to;
+            while (stop > start && isWhitespace(buffer.get(stop - 1)))
+                stop--;
+
+            if (stop > start) {
+                int coding = codingOf(start, stop - start);
+                if (coding < 0 || chunked) {
+                    framingError = true;
+                    return;
+                }
+
+                chunked = coding == 0;
+            }
+
+            from = to + 1;
+        }
+    }
+
+    private int codingOf(int offset, int length) {
+        for (int i = 0; i < CODING_BYTES.length; i++) {
+            if (equalsIgnoreCase(offset, length, CODING_BYTES[i]))
                 return i;
         }
 
-        return res;
+        return -1;
     }
 
-    private static boolean areBytesEqual(byte[] arr1, int from1, byte[] arr2, int from2, int len) {
-        for (int i = 0; i < len; i++) {
-            if (
-                    from1 + i >= arr1.length ||
-                    from2 + i >= arr2.length ||
-                    arr1[from1 + i] != arr2[from2 + i]
-            ) {
-                return false;
+    /**
+     * The header is complete, the body (if any) is framed as bodyType from here on.
+     */
+    protected void startBody(int bodyType) {
+        this.bodyType = bodyType;
+        chunkState = CHUNK_SIZE;
+        remaining = bodyType == BODY_LENGTH ? contentLen : 0;
+
+        if (bodyType == BODY_NONE || (bodyType == BODY_LENGTH && remaining == 0))
+            finish();
+    }
+
+    /**
+     * Feed body bytes buffer[from, to), each byte once. Returns how many of them belong to
+     * the body, fewer than to - from only when the message ends before to.
+     */
+    public int feedBody(BufferChain buffer, int from, int to) {
+        if (complete)
+            return 0;
+
+        switch (bodyType) {
+            case BODY_LENGTH -> {
+                int n = (int) Math.min(remaining, to - from);
+                remaining -= n;
+                bodyRead += n;
+
+                if (remaining == 0)
+                    finish();
+
+                return n;
+            }
+            case BODY_CHUNKED -> {
+                return feedChunked(buffer, from, to);
+            }
+            case BODY_UNTIL_CLOSE -> {
+                bodyRead += to - from;
+                return to - from;
+            }
+            default -> {
+                return 0;
+            }
+        }
+    }
+
+    private int feedChunked(BufferChain buffer, int from, int to) {
+        int i = from;
+
+        while (i < to && !complete) {
+            if (chunkState == CHUNK_DATA) {
+                // skip the chunk data in bulk
+                int n = (int) Math.min(remaining, to - i);
+                remaining -= n;
+                i += n;
+
+                if (remaining == 0)
+                    chunkState = CHUNK_DATA_CR;
+
+                continue;
+            }
+
+            byte b = buffer.get(i++);
+
+            switch (chunkState) {
+                case CHUNK_SIZE -> {
+                    int digit = hexDigit(b);
+                    if (digit >= 0 && chunkSizeDigits < 15) {
+                        remaining = (remaining << 4) | digit;
+                        chunkSizeDigits++;
+                    } else if (b == CR) {
+                        chunkState = CHUNK_SIZE_LF;
+                    } else if (b == LF) {
+                        endOfChunkSize();
+                    } else {
+                        // chunk extension or whitespace, ignored
+                        chunkState = CHUNK_EXT;
+                    }
+                }
+                case CHUNK_EXT -> {
+                    if (b == CR) {
+                        chunkState = CHUNK_SIZE_LF;
+                    } else if (b == LF) {
+                        endOfChunkSize();
+                    }
+                }
+                case CHUNK_SIZE_LF -> endOfChunkSize();
+                case CHUNK_DATA_CR -> chunkState = b == LF ? CHUNK_SIZE : CHUNK_DATA_LF;
+                case CHUNK_DATA_LF -> chunkState = CHUNK_SIZE;
+                case TRAILER_LINE_START -> {
+                    if (b == LF) {
+                        finishChunked(i - from);
+                    } else if (b == CR) {
+                        chunkState = TRAILER_END_LF;
+                    } else {
+                        chunkState = TRAILER_LINE;
+                    }
+                }
+                case TRAILER_LINE -> {
+                    if (b == LF)
+                        chunkState = TRAILER_LINE_START;
+                }
+                case TRAILER_END_LF -> finishChunked(i - from);
+                default -> {}
             }
         }
 
+        if (!complete)
+            bodyRead += i - from;
+
+        return i - from;
+    }
+
+    private void endOfChunkSize() {
+        chunkState = remaining == 0 ? TRAILER_LINE_START : CHUNK_DATA;
+        chunkSizeDigits = 0;
+    }
+
+    private void finishChunked(int consumed) {
+        bodyRead += consumed;
+        finish();
+    }
+
+    protected void finish() {
+        complete = true;
+        messageLength = hdrSize + bodyRead;
+    }
+
+    private static int hexDigit(byte b) {
+        if (b >= '0' && b <= '9')
+            return b - '0';
+        if (b >= 'a' && b <= 'f')
+            return b - 'a' + 10;
+        if (b >= 'A' && b <= 'F')
+            return b - 'A' + 10;
+
+        return -1;
+    }
+
+    public int headerCount() {
+        return headerCount;
+    }
+
+    public int nameOffset(int index) {
+        return nameOffsets[index];
+    }
+
+    public int nameLength(int index) {
+        return nameLengths[index];
+    }
+
+    public int valueOffset(int index) {
+        return valueOffsets[index];
+    }
+
+    public int valueLength(int index) {
+        return valueLengths[index];
+    }
+
+    /**
+     * Index of the first header with that name (case-insensitive), or -1.
+     */
+    public int findHeader(byte[] lowerCaseName) {
+        for (int i = 0; i < headerCount; i++) {
+            if (nameIs(i, lowerCaseName))
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * The value of a header as a String, for the few values that outlive the buffer.
+     */
+    public String headerValue(int index) {
+        byte[] bytes = new byte[valueLengths[index]];
+        buffer.copyTo(valueOffsets[index], bytes, bytes.length);
+
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    protected boolean nameIs(int index, byte[] lowerCaseName) {
+        return equalsIgnoreCase(nameOffsets[index], nameLengths[index], lowerCaseName);
+    }
+
+    protected boolean equalsIgnoreCase(int offset, int length, byte[] lowerCase) {
+        if (length != lowerCase.length)
+            return false;
+
+        for (int i = 0; i < length; i++) {
+            if (toLowerCase(buffer.get(offset + i)) != lowerCase[i])
+                return false;
+        }
+
         return true;
     }
+
+    /**
+     * Whether lowerCaseToken is one of the comma-separated tokens of the header's value,
+     * ignoring case, e.g. close in "Connection: keep-alive, close".
+     */
+    protected boolean hasToken(int index, byte[] lowerCaseToken) {
+        int from = valueOffsets[index];
+        int end = from + valueLengths[index];
+
+        while (from < end) {
+            int comma = indexOf((byte) ',', from, end);
+            int to = comma < 0 ? end : comma;
+
+            int start = from;
+            while (start < to && isWhitespace(buffer.get(start)))
+                start++;
+            int stop = to;
+            while (stop > start && isWhitespace(buffer.get(stop - 1)))
+                stop--;
+
+            if (equalsIgnoreCase(start, stop - start, lowerCaseToken))
+                return true;
+
+            from = to + 1;
+        }
+
+        return false;
+    }
+
+    /**
+     * Position of lowerCaseToken in buffer[from, to) ignoring case, or -1.
+     */
+    protected int indexOfIgnoreCase(byte[] lowerCaseToken, int from, int to) {
+        int last = to - lowerCaseToken.length;
+
+        for (int i = from; i <= last; i++) {
+            if (equalsIgnoreCase(i, lowerCaseToken.length, lowerCaseToken))
+                return i;
+        }
+
+        return -1;
+    }
+
+    protected int indexOf(byte b, int from, int to) {
+        return buffer.indexOf(b, from, to);
+    }
+
+    /**
+     * Decimal value of buffer[offset, offset + length), or -1 if it is not a number.
+     */
+    protected long parseDecimal(int offset, int length) {
+        if (length == 0 || length > 18)
+            return -1;
+
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9)
+                return -1;
+
+            value = value * 10 + digit;
+        }
+
+        return value;
+    }
+
+    static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    static boolean isWhitespace(byte b) {
+        return b == SP || b == HT;
+    }
+
+    static byte[] lowerCaseBytes(String str) {
+        return str.toLowerCase().getBytes(StandardCharsets.US_ASCII);
+    }
 }
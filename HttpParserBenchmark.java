@@ -0,0 +1,87 @@
+package com.ming;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Request header parsing: the previous String based parser against HttpRequest.parse().
+ * Run with: java com.ming.HttpParserBenchmark
+ */
+class HttpParserBenchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 5;
+    private static final int OPS_PER_ROUND = 200_000;
+
+    static final String REQUEST =
+            "GET http://www.example.com/static/js/app.min.js?v=42 HTTP/1.1\r\n" +
+            "Host: www.example.com\r\n" +
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:120.0) Gecko/20100101 Firefox/120.0\r\n" +
+            "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n" +
+            "Accept-Language: en-US,en;q=0.5\r\n" +
+            "Accept-Encoding: gzip, deflate, br\r\n" +
+            "Referer: http://www.example.com/index.html\r\n" +
+            "Cookie: session=4f2a9c1e77b04d2e; theme=dark\r\n" +
+            "Connection: keep-alive\r\n" +
+            "\r\n";
+
+    /**
+     * The parser HttpRequest had before it worked on bytes, kept as the baseline.
+     */
+    static class LegacyParser {
+        Map<String, String> headerMap = new HashMap<>();
+        int type;
+        int port;
+        String requestURI;
+
+        LegacyParser parseRequest(String request) {
+            String[] strs = request.split(HttpBase.HDR_BODY_SEPARATOR);
+
+            strs = strs[0].split(HttpBase.NEW_LINE_SEPARATOR);
+            String tmpURL = null;
+            for (String line: strs) {
+                if (line.startsWith(HttpRequest.GET)) {
+                    type = HttpRequest.GET_TYPE;
+                    tmpURL = line.split(" ")[1];
+                    port = 80;
+                } else if (line.startsWith(HttpRequest.HOST)) {
+                    headerMap.put(HttpRequest.HOST, line.split(" ")[1].split(":")[0]);
+                } else if (line.startsWith(HttpBase.CONNECTION)) {
+                    headerMap.put(HttpBase.CONNECTION, line.split(" ")[1]);
+                } else if (line.startsWith(HttpRequest.ACCEPT_ENCODING)) {
+                    headerMap.put(HttpRequest.ACCEPT_ENCODING, line.substring(line.indexOf(' ') + 1));
+                } else if (line.startsWith(HttpRequest.ACCEPT)) {
+                    headerMap.put(HttpRequest.ACCEPT, line.substring(line.indexOf(' ') + 1));
+                }
+            }
+
+            if (tmpURL != null) {
+                String[] parts = tmpURL.split("//");
+                String url = parts[parts.length - 1];
+                int index = url.indexOf('/');
+                requestURI = index == -1 ? "/" : url.substring(index);
+            }
+
+            return this;
+        }
+    }
+
+    public static void main(String[] args) {
+        byte[] bytes = REQUEST.getBytes(StandardCharsets.US_ASCII);
+
+        BufferChain buffer = new BufferChain(null, 2048);
+        buffer.put(bytes);
+        HttpRequest request = new HttpRequest();
+
+        BenchmarkRunner runner = new BenchmarkRunner(WARMUP_ROUNDS, ROUNDS, OPS_PER_ROUND);
+        runner.run("legacy String parser", () -> {
+            LegacyParser parser = new LegacyParser().parseRequest(new String(bytes, 0, bytes.length));
+            return parser.type;
+        });
+        runner.run("byte parser", () -> {
+            request.reset();
+            return request.parse(buffer, buffer.size());
+        });
+    }
+}
@@ -1,7 +1,7 @@
 package com.ming;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 class HttpRequest extends HttpBase {
     /**
@@ -10,125 +10,545 @@ class HttpRequest extends HttpBase {
     public static final int NOT_IMPLEMENTED = 0;
     public static final int GET_TYPE = 1;
     public static final int CONNECT_TYPE = 2;
+    public static final int HEAD_TYPE = 3;
+    public static final int POST_TYPE = 4;
+    public static final int PUT_TYPE = 5;
+    public static final int PATCH_TYPE = 6;
+    public static final int DELETE_TYPE = 7;
+    public static final int OPTIONS_TYPE = 8;
+
+    // any other method token, forwarded as it is
+    public static final int OTHER_TYPE = 9;
 
     /**
      * HTTP request header fields
      */
     public static final String GET = "GET";
     public static final String CONNECT = "CONNECT";
+    public static final String HEAD = "HEAD";
+    public static final String POST = "POST";
+    public static final String PUT = "PUT";
+    public static final String PATCH = "PATCH";
+    public static final String DELETE = "DELETE";
+    public static final String OPTIONS = "OPTIONS";
     public static final String HOST = "Host";
     public static final String ACCEPT_ENCODING = "Accept-Encoding";
     public static final String ACCEPT = "Accept";
     public static final String USER_AGENT = "User-Agent";
     public static final String REFERER = "Referer";
+    public static final String CACHE_CONTROL = "Cache-Control";
+    public static final String PRAGMA = "Pragma";
+    public static final String CONTENT_TYPE = "Content-Type";
+    public static final String EXPECT = "Expect";
+    public static final String AUTHORIZATION = "Authorization";
+    public static final String COOKIE = "Cookie";
+    public static final String UPGRADE = "Upgrade";
+
+    /**
+     * Method names by request type, for the types known by name
+     */
+    private static final String[] METHODS = {null, GET, CONNECT, HEAD, POST, PUT, PATCH, DELETE, OPTIONS};
+    private static final byte[][] METHOD_BYTES = new byte[METHODS.length][];
+
+    static {
+        for (int type = GET_TYPE; type < METHODS.length; type++)
+            METHOD_BYTES[type] = METHODS[type].getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static final byte[] HOST_BYTES = lowerCaseBytes(HOST);
+    static final byte[] ACCEPT_ENCODING_BYTES = lowerCaseBytes(ACCEPT_ENCODING);
+    static final byte[] CACHE_CONTROL_BYTES = lowerCaseBytes(CACHE_CONTROL);
+    static final byte[] PRAGMA_BYTES = lowerCaseBytes(PRAGMA);
+    static final byte[] EXPECT_BYTES = lowerCaseBytes(EXPECT);
+    static final byte[] AUTHORIZATION_BYTES = lowerCaseBytes(AUTHORIZATION);
+    static final byte[] COOKIE_BYTES = lowerCaseBytes(COOKIE);
+    static final byte[] UPGRADE_BYTES = lowerCaseBytes(UPGRADE);
+
+    // headers of the connection to the proxy, not forwarded; Expect is answered by the proxy,
+    // Upgrade is passed on when the client asks for one
+    private static final byte[][] HOP_BY_HOP_BYTES = {
+            CONNECTION_BYTES, lowerCaseBytes(KEEP_ALIVE), lowerCaseBytes("Proxy-Connection"),
+            lowerCaseBytes("Proxy-Authorization"), lowerCaseBytes("TE"), lowerCaseBytes("Trailer"),
+            UPGRADE_BYTES, EXPECT_BYTES
+    };
+
+    private static final byte[] NO_CACHE_BYTES = lowerCaseBytes("no-cache");
+    private static final byte[] NO_STORE_BYTES = lowerCaseBytes("no-store");
+    private static final byte[] CONTINUE_BYTES = lowerCaseBytes("100-continue");
+
+    private static final byte[] HTTP_SCHEME = "http://".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTPS_SCHEME = "https://".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] REQUEST_LINE_SUFFIX = (" " + HTTP_VERSION + NEW_LINE_SEPARATOR).getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HOST_PREFIX = (HOST + ": ").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] KEEP_ALIVE_LINE = (CONNECTION + ": " + KEEP_ALIVE + NEW_LINE_SEPARATOR).getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] UPGRADE_LINE = (CONNECTION + ": upgrade" + NEW_LINE_SEPARATOR).getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NEW_LINE_BYTES = NEW_LINE_SEPARATOR.getBytes(StandardCharsets.US_ASCII);
 
-    public Map<String, String> headerMap;
-    public String body;
     public int type;
     public int port;
-    public String requestURI;
+
+    /**
+     * Request line views, the URI is the origin-form path of the target
+     */
+    private int methodOffset, methodLength;
+    private int targetOffset, targetLength;
+    private int uriOffset, uriLength;
+    private int hostOffset, hostLength;
+
+    // host and port taken from the request target win over the Host header
+    private boolean targetHasHost;
+    private String host;
+
+    // the client asked to bypass cached responses
+    public boolean noCache;
+
+    // the client waits for a 100 Continue before it sends the body
+    public boolean expectContinue;
+
+    // the request carries credentials, its response is the client's own
+    public boolean hasCredentials;
+
+    // an Upgrade named by Connection, the connection may switch protocols after the response
+    public boolean upgrade;
 
     public HttpRequest() {
-        this.headerMap = new HashMap<>();
-    }
-
-    // assume the request is always valid
-    // TODO char based String is not optimized (conversion between byte and char)
-    public HttpRequest parseRequest(String request) {
-        String[] strs = request.split(HDR_BODY_SEPARATOR);
-        if (strs == null || strs.length == 0 || strs.length > 2)
-            return null;
-
-        // get body or default as a new line separator
-        body = strs.length > 1 ? strs[1] : NEW_LINE_SEPARATOR;
-
-        // parse hdr
-        strs = strs[0].split(NEW_LINE_SEPARATOR);
-        String tmpURL = null;
-        for (String line: strs) {
-            if (line.startsWith(GET)) {
-                type = GET_TYPE;
-
-                tmpURL = line.split(" ")[1];
-                Integer tmpPort = parsePort(tmpURL);
-                port = tmpPort == null ? 80 : tmpPort;
-            } else if (line.startsWith(CONNECT)) {
-                type = CONNECT_TYPE;
-
-                Integer tmpPort = parsePort(line.split(" ")[1]);
-                port = tmpPort == null ? 443 : tmpPort;
-            } else if (line.startsWith(HOST)) {
-                String host = line.split(" ")[1].split(":")[0];
-                headerMap.put(HOST, host);
-            } else if (line.startsWith(CONNECTION)) {
-                headerMap.put(CONNECTION, line.split(" ")[1]);
-            } else if (line.startsWith(ACCEPT_ENCODING)) {
-                int index = line.indexOf(' ');
-                headerMap.put(ACCEPT_ENCODING, line.substring(index + 1));
-            } else if (line.startsWith(ACCEPT)) {
-                int index = line.indexOf(' ');
-                headerMap.put(ACCEPT, line.substring(index + 1));
-            } else {
-                System.out.println("The following request header field is not implemented yet:");
-                System.out.println(line);
-                System.out.println();
-            }
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        type = NOT_IMPLEMENTED;
+        port = 0;
+        uriOffset = uriLength = 0;
+        hostOffset = hostLength = 0;
+        targetHasHost = false;
+        host = null;
+        noCache = false;
+        expectContinue = false;
+        hasCredentials = false;
+        upgrade = false;
+    }
+
+    /**
+     * On PARSE_DONE the body framing starts: a request has a body only with a Content-Length
+     * or a chunked Transfer-Encoding, any other framing cannot be forwarded and is an error.
+     */
+    @Override
+    public int parse(BufferChain buffer, int end) {
+        int result = super.parse(buffer, end);
+        if (result != PARSE_DONE)
+            return result;
+
+        if (chunked) {
+            startBody(BODY_CHUNKED);
+        } else if (findHeader(TRANSFER_ENCODING_BYTES) >= 0) {
+            return PARSE_ERROR;
+        } else if (contentLen >= 0) {
+            startBody(BODY_LENGTH);
+        } else if (findHeader(CONTENT_LENGTH_BYTES) >= 0) {
+            return PARSE_ERROR;
+        } else {
+            startBody(BODY_NONE);
+        }
+
+        int connection = findHeader(CONNECTION_BYTES);
+        int upgradeIndex = findHeader(UPGRADE_BYTES);
+        upgrade = connection >= 0 && upgradeIndex >= 0 && isConnectionOption(connection, upgradeIndex);
+
+        return PARSE_DONE;
+    }
+
+    @Override
+    protected boolean parseStartLine(int offset, int length) {
+        int end = offset + length;
+
+        int sp1 = indexOf(SP, offset, end);
+        if (sp1 <= offset)
+            return false;
+
+        int targetFrom = sp1 + 1;
+        while (targetFrom < end && buffer.get(targetFrom) == SP)
+            targetFrom++;
+
+        int sp2 = indexOf(SP, targetFrom, end);
+        if (sp2 <= targetFrom)
+            return false;
+
+        methodOffset = offset;
+        methodLength = sp1 - offset;
+        targetOffset = targetFrom;
+        targetLength = sp2 - targetFrom;
+
+        type = methodType();
+        if (type == CONNECT_TYPE) {
+            port = 443;
+            // authority-form: host:port
+            parseAuthority(targetOffset, targetOffset + targetLength);
+            targetHasHost = true;
+        } else if (type != NOT_IMPLEMENTED) {
+            port = 80;
+            parseTarget();
         }
 
-        if (tmpURL != null)
-            parseRequestedURI(tmpURL);
+        return true;
+    }
+
+    @Override
+    protected void onHeader(int index) {
+        int from = valueOffsets[index];
+        int to = from + valueLengths[index];
 
-        return this;
+        if (onFramingHeader(index))
+            return;
+
+        if (!targetHasHost && nameIs(index, HOST_BYTES)) {
+            parseAuthority(from, to);
+        } else if (nameIs(index, CACHE_CONTROL_BYTES)) {
+            noCache |= indexOfIgnoreCase(NO_CACHE_BYTES, from, to) >= 0 || indexOfIgnoreCase(NO_STORE_BYTES, from, to) >= 0;
+        } else if (nameIs(index, PRAGMA_BYTES)) {
+            noCache |= indexOfIgnoreCase(NO_CACHE_BYTES, from, to) >= 0;
+        } else if (nameIs(index, EXPECT_BYTES)) {
+            expectContinue = equalsIgnoreCase(from, to - from, CONTINUE_BYTES);
+        } else if (nameIs(index, AUTHORIZATION_BYTES) || nameIs(index, COOKIE_BYTES)) {
+            hasCredentials = true;
+        }
     }
 
-    public String buildGetRequest() {
-        if (type == GET_TYPE) {
-            StringBuilder sb = new StringBuilder();
+    // absolute-form (http://host[:port]/path) or origin-form (/path)
+    private void parseTarget() {
+        int from = targetOffset;
+        int end = targetOffset + targetLength;
+
+        int authorityFrom = -1;
+        if (startsWithIgnoreCase(from, end, HTTP_SCHEME)) {
+            authorityFrom = from + HTTP_SCHEME.length;
+        } else if (startsWithIgnoreCase(from, end, HTTPS_SCHEME)) {
+            authorityFrom = from + HTTPS_SCHEME.length;
+            port = 443;
+        }
+
+        if (authorityFrom < 0) {
+            uriOffset = from;
+            uriLength = targetLength;
+            return;
+        }
 
-            sb.append(GET).append(" ").append(requestURI).append(" ").append(HTTP_VERSION).append(NEW_LINE_SEPARATOR);
-            sb.append(USER_AGENT).append(": ").append(PROXY_VERSION).append(NEW_LINE_SEPARATOR);
+        int slash = indexOf((byte) '/', authorityFrom, end);
+        int authorityEnd = slash < 0 ? end : slash;
 
-            if (headerMap.containsKey(ACCEPT))
-                sb.append(ACCEPT).append(": ").append(headerMap.get(ACCEPT)).append(NEW_LINE_SEPARATOR);
+        parseAuthority(authorityFrom, authorityEnd);
+        targetHasHost = true;
 
-            sb.append(HOST).append(": ").append(headerMap.get(HOST)).append(NEW_LINE_SEPARATOR);
+        // no path means the root
+        uriOffset = slash;
+        uriLength = slash < 0 ? 0 : end - slash;
+    }
 
-            if (headerMap.containsKey(ACCEPT_ENCODING))
-                sb.append(ACCEPT_ENCODING).append(": ").append(headerMap.get(ACCEPT_ENCODING)).append(NEW_LINE_SEPARATOR);
+    private void parseAuthority(int from, int to) {
+        int colon = indexOf(COLON, from, to);
 
-            sb.append(CONNECTION).append(": ").append(KEEP_ALIVE).append(NEW_LINE_SEPARATOR);
+        hostOffset = from;
+        hostLength = (colon < 0 ? to : colon) - from;
 
-            sb.append(NEW_LINE_SEPARATOR);
+        if (colon >= 0) {
+            long value = parseDecimal(colon + 1, to - colon - 1);
+            if (value > 0 && value <= 0xFFFF)
+                port = (int) value;
+        }
+    }
 
-            return sb.toString();
+    private int methodType() {
+        for (int type = GET_TYPE; type < METHOD_BYTES.length; type++) {
+            if (isMethod(METHOD_BYTES[type]))
+                return type;
         }
 
-        return null;
+        for (int i = 0; i < methodLength; i++) {
+            if (!isTokenChar(buffer.get(methodOffset + i)))
+                return NOT_IMPLEMENTED;
+        }
+
+        return OTHER_TYPE;
     }
 
-    private void parseRequestedURI(String url) {
-        // get rid of http:// or https://
-        String[] strs = url.split("//");
-        url = strs[strs.length - 1];
+    private boolean isMethod(byte[] method) {
+        if (methodLength != method.length)
+            return false;
 
-        // find the first / and get the requested uri
-        int index =  url.indexOf('/');
-        if (index == -1) {
-            requestURI = "/";
-        } else {
-            requestURI = url.substring(index);
+        for (int i = 0; i < methodLength; i++) {
+            if (buffer.get(methodOffset + i) != method[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    // tchar of RFC 9110, without the rarely used punctuation
+    private static boolean isTokenChar(byte b) {
+        return (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') ||
+                b == '-' || b == '_' || b == '.' || b == '!' || b == '~';
+    }
+
+    private boolean startsWithIgnoreCase(int from, int end, byte[] lowerCasePrefix) {
+        return end - from >= lowerCasePrefix.length && equalsIgnoreCase(from, lowerCasePrefix.length, lowerCasePrefix);
+    }
+
+    /**
+     * The method for the access log, requests of OTHER_TYPE are not named.
+     */
+    static String methodName(int type) {
+        return type > NOT_IMPLEMENTED && type < METHODS.length ? METHODS[type] : "OTHER";
+    }
+
+    /**
+     * Responses to HEAD have no body whatever their headers say.
+     */
+    public boolean isHead() {
+        return type == HEAD_TYPE;
+    }
+
+    /**
+     * Body bytes follow the header, to be streamed to the upstream behind it.
+     */
+    public boolean hasBody() {
+        return bodyType != BODY_NONE;
+    }
+
+    public int methodOffset() {
+        return methodOffset;
+    }
+
+    public int methodLength() {
+        return methodLength;
+    }
+
+    public int targetOffset() {
+        return targetOffset;
+    }
+
+    public int targetLength() {
+        return targetLength;
+    }
+
+    public int hostOffset() {
+        return hostOffset;
+    }
+
+    public int hostLength() {
+        return hostLength;
+    }
+
+    /**
+     * Copy the host bytes into out, cut at its length, before the request buffer is reused.
+     */
+    public int copyHost(byte[] out) {
+        int length = Math.min(hostLength, out.length);
+        if (length > 0)
+            buffer.copyTo(hostOffset, ByteBuffer.wrap(out, 0, length), length);
+
+        return length;
+    }
+
+    /**
+     * The host as a String, only materialized when an upstream has to be resolved.
+     */
+    public String host() {
+        if (host == null && hostLength > 0) {
+            byte[] bytes = new byte[hostLength];
+            buffer.copyTo(hostOffset, bytes, hostLength);
+            host = new String(bytes, StandardCharsets.US_ASCII);
         }
+
+        return host;
     }
 
-    private Integer parsePort(String url) {
-        String[] strs = url.split("://");
-        url = strs[strs.length - 1];
+    /**
+     * The response cache key: lowercased host, port, URI and the Accept-Encoding the response
+     * was negotiated for.
+     */
+    public String cacheKey() {
+        int encoding = findHeader(ACCEPT_ENCODING_BYTES);
+        int encodingLength = encoding < 0 ? 0 : valueLengths[encoding];
+        int uriBytes = Math.max(uriLength, 1);
 
-        strs = url.split(":");
-        if (strs.length > 1) {
-            return Integer.valueOf(strs[1]);
+        byte[] bytes = new byte[hostLength + 6 + uriBytes + 1 + encodingLength];
+        int pos = 0;
+        for (int i = 0; i < hostLength; i++)
+            bytes[pos++] = toLowerCase(buffer.get(hostOffset + i));
+        bytes[pos++] = COLON;
+        for (int value = port, divisor = 10000; divisor > 0; divisor /= 10)
+            bytes[pos++] = (byte) ('0' + value / divisor % 10);
+        if (uriLength == 0) {
+            bytes[pos++] = '/';
         } else {
-            return null;
+            buffer.copyTo(uriOffset, ByteBuffer.wrap(bytes, pos, uriLength), uriLength);
+            pos += uriLength;
+        }
+        bytes[pos++] = '|';
+        if (encoding >= 0)
+            buffer.copyTo(valueOffsets[encoding], ByteBuffer.wrap(bytes, pos, encodingLength), encodingLength);
+
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Put the request header forwarded to the target server into out: the client's header lines
+     * are forwarded as they are, only the request line is rewritten to origin-form and the
+     * hop-by-hop headers are dropped, those named by Connection too. Host is replaced by the
+     * target's authority if the request line has one, extraHeaders (preformatted lines such as
+     * the cache validators) replace the client's headers of the same names. An Expect is
+     * answered by the proxy and not forwarded, a Content-Length next to chunked neither. An
+     * upgrade request keeps its Upgrade and asks for Connection: upgrade instead of keep-alive.
+     *
+     * The views point into the request buffer, which may only skip the header once out is
+     * written.
+     */
+    public boolean forwardHeader(ForwardedHeader out, byte[] extraHeaders) {
+        if (type == NOT_IMPLEMENTED || type == CONNECT_TYPE)
+            return false;
+
+        out.clear();
+
+        // the method and the space behind it, the path, then the version the proxy speaks
+        out.add(buffer, methodOffset, methodLength + 1);
+        out.add(buffer, uriOffset, uriLength);
+        ByteBuffer line = out.beginPatch(REQUEST_LINE_SUFFIX.length + 1);
+        if (uriLength == 0)
+            line.put((byte) '/');
+        line.put(REQUEST_LINE_SUFFIX);
+        out.endPatch();
+
+        // runs of forwarded lines are one view each, a line ends where the next one starts
+        int connection = findHeader(CONNECTION_BYTES);
+        int spanStart = -1;
+        for (int i = 0; i < headerCount; i++) {
+            boolean forwarded = isForwarded(i, connection, extraHeaders);
+            if (forwarded && spanStart < 0) {
+                spanStart = nameOffsets[i];
+            } else if (!forwarded && spanStart >= 0) {
+                out.add(buffer, spanStart, nameOffsets[i] - spanStart);
+                spanStart = -1;
+            }
+        }
+        if (spanStart >= 0)
+            out.add(buffer, spanStart, headerEnd() - spanStart);
+
+        int extra = extraHeaders == null ? 0 : extraHeaders.length;
+        byte[] connectionLine = upgrade ? UPGRADE_LINE : KEEP_ALIVE_LINE;
+        ByteBuffer tail = out.beginPatch(HOST_PREFIX.length + hostLength + 8 + connectionLine.length + extra + 2);
+        if (targetHasHost) {
+            tail.put(HOST_PREFIX);
+            buffer.copyTo(hostOffset, tail, hostLength);
+            if (port != 80) {
+                tail.put(COLON);
+                putDecimal(tail, port);
+            }
+            tail.put(NEW_LINE_BYTES);
+        }
+        tail.put(connectionLine);
+        if (extraHeaders != null)
+            tail.put(extraHeaders);
+        tail.put(NEW_LINE_BYTES);
+        out.endPatch();
+
+        return true;
+    }
+
+    private boolean isForwarded(int index, int connection, byte[] extraHeaders) {
+        if (upgrade && nameIs(index, UPGRADE_BYTES))
+            return true;
+
+        for (byte[] name : HOP_BY_HOP_BYTES) {
+            if (nameIs(index, name))
+                return false;
+        }
+
+        if (targetHasHost && nameIs(index, HOST_BYTES))
+            return false;
+        // the body is chunked, a Content-Length next to it must not reach the next hop
+        if (chunked && nameIs(index, CONTENT_LENGTH_BYTES))
+            return false;
+        if (connection >= 0 && isConnectionOption(connection, index))
+            return false;
+
+        return extraHeaders == null || !isNamedIn(extraHeaders, index);
+    }
+
+    // whether the name of the header at index is one of the options of a Connection header
+    private boolean isConnectionOption(int connection, int index) {
+        int from = valueOffsets[connection];
+        int end = from + valueLengths[connection];
+
+        while (from < end) {
+            int comma = indexOf((byte) ',', from, end);
+            int to = comma < 0 ? end : comma;
+
+            int start = from;
+            while (start < to && isWhitespace(buffer.get(start)))
+                start++;
+            int stop = to;
+            while (stop > start && isWhitespace(buffer.get(stop - 1)))
+                stop--;
+
+            if (stop - start == nameLengths[index] && regionEqualsIgnoreCase(start, nameOffsets[index], stop - start))
+                return true;
+
+            from = to + 1;
         }
+
+        return false;
+    }
+
+    // whether one of the header lines in lines has the name of the header at index
+    private boolean isNamedIn(byte[] lines, int index) {
+        int length = nameLengths[index];
+
+        for (int start = 0; start < lines.length; ) {
+            int colon = start;
+            while (colon < lines.length && lines[colon] != COLON)
+                colon++;
+
+            if (colon - start == length) {
+                int i = 0;
+                while (i < length && toLowerCase(lines[start + i]) == toLowerCase(buffer.get(nameOffsets[index] + i)))
+                    i++;
+                if (i == length)
+                    return true;
+            }
+
+            while (start < lines.length && lines[start] != LF)
+                start++;
+            start++;
+        }
+
+        return false;
+    }
+
+    private boolean regionEqualsIgnoreCase(int offset, int otherOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (toLowerCase(buffer.get(offset + i)) != toLowerCase(buffer.get(otherOffset + i)))
+                return false;
+        }
+
+        return true;
+    }
+
+    // where the empty line ending the header starts
+    private int headerEnd() {
+        int end = hdrSize - 1;
+        if (end > 0 && buffer.get(end - 1) == CR)
+            end--;
+
+        return end;
+    }
+
+    private static void putDecimal(ByteBuffer out, long value) {
+        long divisor = 1;
+        while (value / divisor >= 10)
+            divisor *= 10;
+
+        for (; divisor > 0; divisor /= 10)
+            out.put((byte) ('0' + value / divisor % 10));
     }
 }
@@ -1,8 +1,14 @@
 package com.ming;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 
+/**
+ * Response header parser and streaming body framing. Bytes are fed as they are read from the
+ * upstream, the body itself is never buffered: only where the message ends is tracked, with the
+ * framing HttpBase shares with request bodies.
+ */
 public class HttpResponse extends HttpBase {
 
     /**
@@ -15,44 +21,267 @@ public class HttpResponse extends HttpBase {
     public static final String ACCEPT_RANGES = "Accept-Ranges";
     public static final String VARY = "Vary";
     public static final String CONTENT_ENCODING = "Content-Encoding";
-    public static final String CONTENT_LENGTH = "Content-Length";
     public static final String CONTENT_TYPE = "Content-Type";
+    public static final String CACHE_CONTROL = "Cache-Control";
+    public static final String EXPIRES = "Expires";
+    public static final String ETAG = "ETag";
+    public static final String LAST_MODIFIED = "Last-Modified";
+    public static final String AGE = "Age";
 
-    public Map<String, String> headerMap;
-    public int hdrSize;
-    public int contentLen; // assume within the range of int
+    static final byte[] CLOSE_BYTES = lowerCaseBytes("close");
+    static final byte[] KEEP_ALIVE_BYTES = lowerCaseBytes(KEEP_ALIVE);
+    static final byte[] CACHE_CONTROL_BYTES = lowerCaseBytes(CACHE_CONTROL);
+    static final byte[] EXPIRES_BYTES = lowerCaseBytes(EXPIRES);
+    static final byte[] ETAG_BYTES = lowerCaseBytes(ETAG);
+    static final byte[] LAST_MODIFIED_BYTES = lowerCaseBytes(LAST_MODIFIED);
+    static final byte[] AGE_BYTES = lowerCaseBytes(AGE);
+    static final byte[] SET_COOKIE_BYTES = lowerCaseBytes(SET_COOKIE);
+    static final byte[] VARY_BYTES = lowerCaseBytes(VARY);
+
+    private static final byte[] NO_STORE_BYTES = lowerCaseBytes("no-store");
+    private static final byte[] NO_CACHE_BYTES = lowerCaseBytes("no-cache");
+    private static final byte[] PRIVATE_BYTES = lowerCaseBytes("private");
+    private static final byte[] MAX_AGE_BYTES = lowerCaseBytes("max-age=");
+    private static final byte[] S_MAXAGE_BYTES = lowerCaseBytes("s-maxage=");
+
+    public int statusCode;
+    public boolean connectionClose;
+
+    // a Connection header said close, a later keep-alive does not undo it
+    private boolean closeAnnounced;
+
+    /**
+     * Caching directives, maxAge in seconds (s-maxage wins) or -1, the validators, Expires
+     * and Age are header indexes or -1
+     */
+    public long maxAge;
+    public boolean noStore;
+    public boolean noCache;
+    public boolean hasSetCookie;
+    public boolean hasVary;
+    public int expiresIndex;
+    public int etagIndex;
+    public int lastModifiedIndex;
+    public int ageIndex;
+    private boolean sharedMaxAge;
+
+    public boolean headerComplete;
+
+    // responses to HEAD carry no body whatever their headers say
+    private boolean noBody;
 
     public HttpResponse() {
-        this.headerMap = new HashMap<>();
-    }
-
-    public HttpResponse parseResponse(String response) {
-        hdrSize = response.length();
-
-        // parse hdr
-        String[] strs = response.split(NEW_LINE_SEPARATOR);
-        for (String line: strs) {
-            if (line.startsWith(DATE)) {
-                headerMap.put(DATE, line.split(" ")[1]);
-            } else if (line.startsWith(SERVER)) {
-                headerMap.put(SERVER, PROXY_VERSION); // proxy version
-            } else if (line.startsWith(ACCEPT_RANGES)) {
-                headerMap.put(ACCEPT_RANGES, line.split(" ")[1]);
-            } else if (line.startsWith(CONTENT_LENGTH)) {
-                String lenStr = line.split(" ")[1];
-                contentLen = Integer.valueOf(lenStr);
-                headerMap.put(CONTENT_LENGTH, lenStr);
-            } else if (line.startsWith(CONTENT_TYPE)) {
-                headerMap.put(CONTENT_TYPE, line.split(" ")[1]);
-            } else if (line.startsWith(CONNECTION)) {
-                headerMap.put(CONNECTION, line.split(" ")[1]);
-            } else {
-                System.out.println("The following response header field is not implemented yet:");
-                System.out.println(line);
-                System.out.println();
+        resetHeaderFields();
+    }
+
+    public void expectNoBody(boolean noBody) {
+        this.noBody = noBody;
+    }
+
+    /**
+     * Feed buffer[from, to), the bytes just read. The header block must start at offset 0 of
+     * the buffer and stay there until the header is complete; body bytes only need to be fed once.
+     * Returns PARSE_DONE once the whole message has been seen.
+     */
+    public int feed(BufferChain buffer, int from, int to) {
+        if (complete)
+            return PARSE_DONE;
+
+        if (!headerComplete) {
+            int result = parse(buffer, to);
+            while (result == PARSE_DONE && isInterim()) {
+                // 100 Continue and friends: relayed as is, the real response follows
+                restartAt(hdrSize);
+                resetHeaderFields();
+                result = parse(buffer, to);
+            }
+
+            if (result != PARSE_DONE)
+                return result;
+
+            headerComplete = true;
+            startBody();
+            from = hdrSize;
+        }
+
+        feedBody(buffer, from, to);
+
+        return complete ? PARSE_DONE : PARSE_INCOMPLETE;
+    }
+
+    /**
+     * The upstream closed its side, which ends a close-delimited body.
+     */
+    public boolean endOfStream() {
+        if (headerComplete && bodyType == BODY_UNTIL_CLOSE && !complete)
+            finish();
+
+        return complete;
+    }
+
+    public boolean isCloseDelimited() {
+        return bodyType == BODY_UNTIL_CLOSE;
+    }
+
+    /**
+     * 101 Switching Protocols turns the connection into a raw byte stream.
+     */
+    public boolean isSwitchingProtocols() {
+        return statusCode == 101;
+    }
+
+    /**
+     * Until when the response may be served without asking the server again: max-age, then
+     * Expires, and no later than now for no-cache or no freshness information at all.
+     */
+    public long freshUntil(long now) {
+        if (noCache)
+            return now;
+        if (maxAge >= 0)
+            return now + maxAge * 1000;
+        if (expiresIndex >= 0) {
+            try {
+                return ZonedDateTime.parse(headerValue(expiresIndex), DateTimeFormatter.RFC_1123_DATE_TIME)
+                        .toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                // an invalid date means already expired
+                return now;
             }
         }
 
-        return this;
+        return now;
+    }
+
+    /**
+     * Seconds the response already spent in caches on its way here, per its Age header.
+     */
+    public long age() {
+        if (ageIndex < 0)
+            return 0;
+
+        return Math.max(parseDecimal(valueOffsets[ageIndex], valueLengths[ageIndex]), 0);
+    }
+
+    public boolean hasValidators() {
+        return etagIndex >= 0 || lastModifiedIndex >= 0;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        resetHeaderFields();
+        headerComplete = false;
+        noBody = false;
+    }
+
+    private void resetHeaderFields() {
+        statusCode = 0;
+        contentLen = -1;
+        chunked = false;
+        connectionClose = false;
+        closeAnnounced = false;
+        maxAge = -1;
+        noStore = false;
+        noCache = false;
+        hasSetCookie = false;
+        hasVary = false;
+        expiresIndex = -1;
+        etagIndex = -1;
+        lastModifiedIndex = -1;
+        ageIndex = -1;
+        sharedMaxAge = false;
+    }
+
+    // HTTP/1.1 200 OK
+    @Override
+    protected boolean parseStartLine(int offset, int length) {
+        int end = offset + length;
+
+        int sp = indexOf(SP, offset, end);
+        if (sp < 0 || end - sp < 4)
+            return false;
+
+        long code = parseDecimal(sp + 1, 3);
+        if (code < 100)
+            return false;
+
+        statusCode = (int) code;
+
+        // an HTTP/1.0 server closes after the response unless it says keep-alive
+        connectionClose = sp - offset == HTTP_VERSION.length() && buffer.get(sp - 1) == '0';
+
+        return true;
+    }
+
+    @Override
+    protected void onHeader(int index) {
+        if (onFramingHeader(index))
+            return;
+
+        if (nameIs(index, CONNECTION_BYTES)) {
+            // a close among the options wins, keep-alive only lifts the HTTP/1.0 default
+            if (hasToken(index, CLOSE_BYTES)) {
+                connectionClose = true;
+                closeAnnounced = true;
+            } else if (!closeAnnounced && hasToken(index, KEEP_ALIVE_BYTES)) {
+                connectionClose = false;
+            }
+        } else if (nameIs(index, CACHE_CONTROL_BYTES)) {
+            parseCacheControl(valueOffsets[index], valueOffsets[index] + valueLengths[index]);
+        } else if (nameIs(index, EXPIRES_BYTES)) {
+            expiresIndex = index;
+        } else if (nameIs(index, ETAG_BYTES)) {
+            etagIndex = index;
+        } else if (nameIs(index, LAST_MODIFIED_BYTES)) {
+            lastModifiedIndex = index;
+        } else if (nameIs(index, AGE_BYTES)) {
+            ageIndex = index;
+        } else if (nameIs(index, SET_COOKIE_BYTES)) {
+            hasSetCookie = true;
+        } else if (nameIs(index, VARY_BYTES)) {
+            hasVary = true;
+        }
+    }
+
+    // only what a shared cache needs: no-store, private, no-cache, s-maxage and max-age
+    private void parseCacheControl(int from, int to) {
+        if (indexOfIgnoreCase(NO_STORE_BYTES, from, to) >= 0 || indexOfIgnoreCase(PRIVATE_BYTES, from, to) >= 0)
+            noStore = true;
+        if (indexOfIgnoreCase(NO_CACHE_BYTES, from, to) >= 0)
+            noCache = true;
+
+        int sMaxAge = indexOfIgnoreCase(S_MAXAGE_BYTES, from, to);
+        if (sMaxAge >= 0) {
+            maxAge = parseSeconds(sMaxAge + S_MAXAGE_BYTES.length, to);
+            sharedMaxAge = true;
+        } else if (!sharedMaxAge) {
+            int maxAgeAt = indexOfIgnoreCase(MAX_AGE_BYTES, from, to);
+            if (maxAgeAt >= 0)
+                maxAge = parseSeconds(maxAgeAt + MAX_AGE_BYTES.length, to);
+        }
+    }
+
+    private long parseSeconds(int from, int to) {
+        int end = from;
+        while (end < to && buffer.get(end) >= '0' && buffer.get(end) <= '9')
+            end++;
+
+        return parseDecimal(from, end - from);
+    }
+
+    private boolean isInterim() {
+        return statusCode >= 100 && statusCode < 200 && statusCode != 101;
+    }
+
+    private void startBody() {
+        if (noBody || statusCode == 204 || statusCode == 304 || isSwitchingProtocols()) {
+            startBody(BODY_NONE);
+        } else if (chunked) {
+            startBody(BODY_CHUNKED);
+        } else if (contentLen >= 0) {
+            startBody(BODY_LENGTH);
+        } else {
+            startBody(BODY_UNTIL_CLOSE);
+        }
     }
 }
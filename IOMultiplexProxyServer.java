@@ -1,53 +1,497 @@
 package com.ming;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
-import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.ClosedChannelException;
-import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class IOMultiplexProxyServer extends ProxyServer{
 
-    private final Selector selector;
+    /**
+     * Connecting to an upstream: how long looking up its name may take, how long an attempt
+     * may take, how long the next address of a target waits for the attempts before it, and
+     * how long an address that failed is tried after the others
+     */
+    static final long RESOLVE_TIMEOUT_MILLIS = 2_000;
+    static final long CONNECT_TIMEOUT_MILLIS = 500;
+    static final long CONNECT_ATTEMPT_DELAY_MILLIS = 250;
+    private static final long ADDRESS_FAILURE_PENALTY_MILLIS = 30_000;
+    private static final int ADDRESS_STATS_SIZE = 4096;
+
+    /**
+     * Connections without reads or writes on either side, headers taking too long to arrive,
+     * and requests taking too long altogether are closed
+     */
+    static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60_000;
+    static final long DEFAULT_HEADER_TIMEOUT_MILLIS = 10_000;
+    static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 300_000;
+    private static final long TIMER_TICK_MILLIS = 100;
+    private static final int TIMER_SLOTS = 512;
+
+    /**
+     * Client connections admitted at once, in total and per source address, and the addresses
+     * kept track of. Requests and bytes are not rate limited unless configured.
+     */
+    static final int DEFAULT_MAX_CONNECTIONS = 16_384;
+    static final int DEFAULT_MAX_CONNECTIONS_PER_CLIENT = 1024;
+    static final int DEFAULT_MAX_ADMISSION_CLIENTS = 65_536;
+    private static final int REJECT_DRAIN_SIZE = 4096;
+
+    static final long DEFAULT_MAX_BUFFER_MEMORY = 256L << 20;
+
+    /**
+     * Listening: where, the kernel's queue of connections not accepted yet, and how long the
+     * open connections get to finish once the server drains
+     */
+    static final String DEFAULT_BIND_HOST = "localhost";
+    static final int DEFAULT_BACKLOG = 1024;
+    static final long DEFAULT_DRAIN_TIMEOUT_MILLIS = 30_000;
+    private static final long DRAIN_POLL_MILLIS = 100;
+
+    /**
+     * Requests a client may have queued behind the one in flight before it is not read anymore
+     */
+    static final int DEFAULT_PIPELINE_DEPTH = 16;
+
+    /**
+     * Most request body bytes buffered for the upstream before the client is not read anymore
+     */
+    static final int MAX_BODY_BUFFERED = 64 * 1024;
+
+    /**
+     * Idle upstream keep-alive connections, per worker
+     */
+    private static final int MAX_IDLE_PER_TARGET = 32;
+    private static final int MAX_IDLE_UPSTREAMS = 1024;
+    private static final long UPSTREAM_IDLE_TIMEOUT_MILLIS = 30_000;
+    private static final long EVICTION_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Name lookups, shared by all workers
+     */
+    private static final long DNS_POSITIVE_TTL_MILLIS = 60_000;
+    private static final long DNS_NEGATIVE_TTL_MILLIS = 5_000;
+    private static final int DNS_CACHE_SIZE = 4096;
+    private static final int DNS_THREADS = 4;
+
+    /**
+     * GET response cache, shared by all workers
+     */
+    private static final long RESPONSE_CACHE_MAX_BYTES = 64L << 20;
+    private static final int RESPONSE_CACHE_MAX_ENTRY_BYTES = 4 << 20;
+    private static final int DISK_CACHE_SEGMENT_SIZE = 64 << 20;
+    private static final long DISK_CACHE_MAX_BYTES = 4L << 30;
+
+    /**
+     * Concurrent identical GETs share one upstream fetch, responses up to this size
+     */
+    private static final int MAX_SHARED_RESPONSE_BYTES = 4 << 20;
+
+    /**
+     * How the acceptor picks a worker for a new client connection
+     */
+    enum Balance {
+        ROUND_ROBIN,
+        LEAST_LOADED
+    }
+
+    private final Reactor[] workers;
+
+    // set by runServer(), none with a listener per worker
+    private volatile Reactor acceptor;
+    private final Balance balance;
+    private final DnsCache dnsCache;
+    private final AddressStats addressStats;
+    private final ResponseCache responseCache;
+    private final InFlightTable inFlight;
+    private int nextWorker;
+    private volatile int pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private volatile long headerTimeout = DEFAULT_HEADER_TIMEOUT_MILLIS;
+    private volatile long requestTimeout = DEFAULT_REQUEST_TIMEOUT_MILLIS;
+    private volatile AdmissionControl admission = new AdmissionControl(DEFAULT_MAX_CONNECTIONS,
+            DEFAULT_MAX_CONNECTIONS_PER_CLIENT, DEFAULT_MAX_ADMISSION_CLIENTS, 0, 0, 0, 0);
+
+    // listeners and the options of every connection, set before runServer()
+    private volatile String bindHost = DEFAULT_BIND_HOST;
+    private volatile boolean reusePort;
+    private volatile int backlog = DEFAULT_BACKLOG;
+    private volatile boolean tcpNoDelay = true;
+    private volatile int sendBufferSize;
+    private volatile int receiveBufferSize;
+
+    // no new connections, the open ones close once their requests are done
+    private volatile boolean draining;
+
+    /**
+     * One selector and the thread running it. A client channel and its upstream counterpart
+     * are always registered on the same reactor, so their attachments are only ever touched
+     * by that reactor's thread.
+     */
+    class Reactor implements Runnable, Executor {
+
+        final int id;
+        final int stripe;
+        final Selector selector;
+        final BufferPool pool;
+        final UpstreamPool upstreams;
+
+        // the timeouts of this reactor's connections, one timer each
+        final TimerWheel timers;
+
+        // work handed over by other threads, run on this reactor's thread
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        // the listener this reactor accepts from, if any
+        private ServerSocketChannel listener;
+
+        // load, read by the acceptor for balancing and by anyone for reporting
+        private final AtomicInteger connections = new AtomicInteger();
+        private volatile long accepted;
+        private volatile long keysProcessed;
+
+        private ByteBuffer scratch;
+        private long nextEviction;
+
+        // when the last select() returned, the time a selected connection was last active
+        private long now;
+
+        Reactor(int id, long maxBufferMemory) throws IOException {
+            this.id = id;
+            this.stripe = id >= 0 ? id : workers.length;
+            this.selector = Selector.open();
+            this.pool = new BufferPool(maxBufferMemory);
+            this.upstreams = new UpstreamPool(MAX_IDLE_PER_TARGET, MAX_IDLE_UPSTREAMS,
+                    UPSTREAM_IDLE_TIMEOUT_MILLIS, IOMultiplexProxyServer.this::closeSocketChannel);
+            this.now = System.currentTimeMillis();
+            this.timers = new TimerWheel(TIMER_TICK_MILLIS, TIMER_SLOTS, now);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                select();
+            }
+        }
+
+        private void select() {
+            // non-blocking select, woken up in time for the next timer tick or idle eviction
+            try {
+                long deadline = timers.nextTick();
+                if (upstreams.size() > 0)
+                    deadline = Math.min(deadline, nextEviction);
+
+                if (deadline == Long.MAX_VALUE) {
+                    selector.select();
+                } else {
+                    long timeout = deadline - System.currentTimeMillis();
+                    if (timeout > 0) {
+                        selector.select(timeout);
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+
+                long loopStart = System.nanoTime();
+                now = System.currentTimeMillis();
+
+                runTasks();
+
+                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                metrics.keysPerSelect.record(stripe, selectedKeys.size());
+
+                Iterator<SelectionKey> iterator = selectedKeys.iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey selectionKey = iterator.next();
+                    iterator.remove();
+                    keysProcessed++;
+
+                    if (!selectionKey.isValid()) {
+                        // socket is closed
+                        continue;
+                    }
+
+                    if (selectionKey.attachment() instanceof SocketChannelAtt attachment) {
+                        // moves the connection's timeout, checked when its timer runs
+                        attachment.lastActive = now;
+
+                        // an established tunnel skips the request and response dispatch
+                        if (attachment.tunnel != null) {
+                            Tunnel tunnel = attachment.tunnel;
+                            tunnel.handle(selectionKey);
+                            chargeBytes((SocketChannelAtt) tunnel.client().attachment());
+                            continue;
+                        }
+                    }
+
+                    if (selectionKey.isAcceptable()) {
+                        accept(this, (ServerSocketChannel) selectionKey.channel());
+                        continue;
+                    }
+
+                    if (selectionKey.isConnectable()) {
+                        handleConnect(selectionKey);
+                    } else {
+                        if (selectionKey.isReadable())
+                            handleRead(selectionKey);
+                        if (selectionKey.isValid() && selectionKey.isWritable())
+                            handleWrite(selectionKey);
+                    }
+
+                    // a client over its byte rate is not read or written for a while, what this
+                    // key's buffers look like now decides what both sides wait for; a connect
+                    // attempt that lost has none
+                    if (selectionKey.attachment() instanceof SocketChannelAtt attachment) {
+                        chargeBytes(attachment);
+                        updateInterest(attachment);
+                    }
+                }
+
+                pool.wakeWaiters();
+                timers.advance(System.currentTimeMillis());
+                evictIdleUpstreams();
+
+                metrics.loopTime.record(stripe, System.nanoTime() - loopStart);
+            } catch (IOException e) {
+                AsyncLog.get().error("select failed on reactor " + id, e);
+            }
+        }
+
+        private void evictIdleUpstreams() {
+            long now = System.currentTimeMillis();
+            if (now < nextEviction)
+                return;
+
+            upstreams.evictIdle(now);
+            nextEviction = now + EVICTION_INTERVAL_MILLIS;
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        /**
+         * Reusable scratch space, only used on this reactor's thread.
+         */
+        ByteBuffer scratch(int minCapacity) {
+            if (scratch == null || scratch.capacity() < minCapacity)
+                scratch = ByteBuffer.allocate(minCapacity);
+
+            return scratch.clear();
+        }
+
+        private void listen(ServerSocketChannel serverSocket) throws ClosedChannelException {
+            listener = serverSocket;
+            serverSocket.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        /**
+         * Draining: what is queued on the listener is accepted before it is closed, then the
+         * idle connections are closed; the others close once their requests are done.
+         */
+        private void stopListening() {
+            if (listener != null) {
+                while (accept(this, listener))
+                    ;
+
+                try {
+                    listener.close();
+                } catch (IOException e) {
+                    // not accepting either way
+                }
+                listener = null;
+            }
+
+            upstreams.evictIdle(Long.MAX_VALUE);
+
+            for (SelectionKey selectionKey : new ArrayList<>(selector.keys())) {
+                if (selectionKey.isValid() && selectionKey.attachment() instanceof SocketChannelAtt attachment &&
+                        attachment.isClient() && attachment.state == SocketChannelAtt.State.IDLE && attachment.buffer.isEmpty())
+                    closeSocketChannel(selectionKey);
+            }
+        }
+
+        private void registerClient(SocketChannel clientSocket, AdmissionControl.Client admitted) {
+            SocketChannelAtt attachment = new SocketChannelAtt(this, true);
+
+            // out of buffer memory: refuse new clients rather than grow
+            if (attachment.getBuffer().writable(true) == null) {
+                admitted.release();
+                reject(this, clientSocket, SERVICE_UNAVAILABLE_RESPONSE);
+                closeQuietly(clientSocket);
+                return;
+            }
+
+            try {
+                attachment.selectionKey = clientSocket.register(selector, SelectionKey.OP_READ, attachment);
+                attachment.admitted = admitted;
+                attachment.lastActive = now;
+                armTimer(attachment);
+                connections.incrementAndGet();
+                accepted++;
+                metrics.accepts.increment();
+                metrics.clientConnections.increment();
+            } catch (ClosedChannelException e) {
+                admitted.release();
+                AsyncLog.get().error("client closed before registration", e);
+            }
+        }
+
+        int getConnections() {
+            return connections.get();
+        }
+
+        long getAccepted() {
+            return accepted;
+        }
+
+        long getKeysProcessed() {
+            return keysProcessed;
+        }
+
+        int getTimers() {
+            return timers.size();
+        }
+    }
 
     class SocketChannelAtt {
 
         private final static int BUFFER_SIZE = 2048;
 
-        private boolean isClient;
-        private ByteBuffer byteBuffer;
+        private final Reactor reactor;
+        private SelectionKey selectionKey;
+        private final boolean isClient;
+        private final BufferChain buffer;
+
+        // client only: the request body on its way to the upstream, buffer keeps what the
+        // client sends meanwhile
+        private final BufferChain requestBuffer;
+
+        // client only: the request header written to the upstream from buffer, spliced
+        private final ForwardedHeader forwarded;
+
+        // client only: complete requests queued in buffer behind the one in flight, they take
+        // up buffer[0, pipelineScanned)
+        private HttpRequest lookahead;
+        private int pipelined;
+        private int pipelineScanned;
+        private boolean pipelineBlocked;
         private SelectionKey counterpartSlctKey;
         private State state;
 
+        // upstream only: from the lookup of the target's name until finishConnect() succeeds
+        // on one of the channels racing over its addresses, within connectDeadline
+        private boolean connecting;
+        private ConnectRace race;
+        private long connectDeadline;
+        private long connectStartNanos;
+
+        // when the current request was parsed, for the time to first byte and the duration
+        private long requestStartNanos;
+        private boolean firstByteSeen;
+
+        // timeouts: the timer runs at the earliest deadline and moves on to the current one
+        // if the connection was active meanwhile
+        private final TimerWheel.Timer timer = new TimerWheel.Timer(() -> onTimeout(this));
+        private long lastActive;
+        private long headerStart;
+        private long requestDeadline;
+
+        // client only: its source address's admission state, the bytes it moved and how many
+        // of them are charged to its byte rate, and while it is over that rate the timer
+        // that lets it move bytes again
+        private AdmissionControl.Client admitted;
+        private long transferred;
+        private long charged;
+        private boolean throttled;
+
+        // the pool ran out while the header was read, not read until a buffer comes back
+        private boolean starved;
+        private TimerWheel.Timer throttle;
+
+        // upstream only: target and idle bookkeeping in the worker's upstream pool
+        private UpstreamPool.Entry poolEntry;
+
+        // client only: a cached response being written instead of an upstream's buffer, the
+        // views of the entry and its Age line are kept for the next hit
+        private ByteBuffer[] cacheSource;
+        private ByteBuffer[] cacheViews;
+        private ByteBuffer ageLine;
+        private int cacheLength;
+
+        // client only: a 100 Continue written ahead of whatever the upstream sends
+        private ByteBuffer interim;
+
+        // upstream only: the flight its response is shared through with waiting clients
+        private InFlightTable.Flight flight;
+
+        // client only: the flight it waits for and then is written from, and how far
+        private InFlightTable.Flight joined;
+        private int joinedOffset;
+
+        // both sides: relaying through a tunnel, the parse buffer is not used anymore
+        private Tunnel tunnel;
+
+        // the request's host for the access log, the request buffer is cleared once forwarded
+        private final byte[] logHost = new byte[AsyncLog.TEXT_SIZE];
+        private int logHostLength;
+
+        // upstream only: where the response goes in the cache, the stale entry it revalidates
+        // and the copy being taken of it
+        private String cacheKey;
+        private ResponseCache.Entry revalidating;
+        private ResponseCache.Capture capture;
+        private boolean headerHandled;
+
         public HttpRequest httpRequest;
         public HttpResponse httpResponse;
 
-        private int bytesWritten;
-        private int bytesRead;
+        private long bytesWritten;
+        private long bytesRead;
 
+        /**
+         * HTTP: a request of any method but CONNECT and its response are in flight,
+         * WAITING: a client waits for the response to the same GET already in flight
+         */
         enum State {
             IDLE,
-            GET,
+            HTTP,
+            WAITING,
             CONNECT
         }
 
-        SocketChannelAtt() {
-            this.byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-            this.state = State.IDLE;
-        }
-
-        SocketChannelAtt(boolean isClient) {
-            this();
+        SocketChannelAtt(Reactor reactor, boolean isClient) {
+            this.reactor = reactor;
             this.isClient = isClient;
+            this.buffer = new BufferChain(reactor.pool, BUFFER_SIZE);
+            this.requestBuffer = isClient ? new BufferChain(reactor.pool, BUFFER_SIZE) : null;
+            this.forwarded = isClient ? new ForwardedHeader() : null;
+            this.state = State.IDLE;
         }
 
         public void setCounterpartSlctKey(SelectionKey selectionKey) {
@@ -62,149 +506,669 @@ public class IOMultiplexProxyServer extends ProxyServer{
             return isClient;
         }
 
-        public ByteBuffer getByteBuffer() {
-            return byteBuffer;
+        public BufferChain getBuffer() {
+            return buffer;
         }
 
-        public void changeByteBufferTo(ByteBuffer byteBuffer) {
-            this.byteBuffer = byteBuffer;
+        /**
+         * What the other side writes: the request bodies of a client behind its forwarded
+         * header, or the raw bytes of a tunnel and of an upstream.
+         */
+        public BufferChain outgoing() {
+            return isClient && state != State.CONNECT ? requestBuffer : buffer;
         }
 
-        public boolean handleHttpRequest() {
-            int pos = byteBuffer.position();
+        /**
+         * Only headers still being parsed may grow the buffer: a client's next request, also
+         * while one is in flight. Relayed bytes wait until the other side has written what is
+         * buffered.
+         */
+        public boolean isParsingHeader() {
+            if (isClient)
+                return state == State.IDLE || (state == State.HTTP && !isSendingBody());
 
-            int len = HttpRequest.endOfEmptyLine(byteBuffer.array(), pos);
-            if (len > 0) {
-                httpRequest = new HttpRequest().parseRequest(new String(byteBuffer.array(), 0, len));
+            return state == State.HTTP && (httpResponse == null || !httpResponse.headerComplete);
+        }
 
-                switch (httpRequest.type) {
-                    case HttpRequest.GET_TYPE -> state = State.GET;
-                    case HttpRequest.CONNECT_TYPE -> state = State.CONNECT;
-                    default -> System.out.println("This HTTP type of " + httpRequest.type + " is not supported!");
-                }
+        public void release() {
+            buffer.release();
+            if (requestBuffer != null)
+                requestBuffer.release();
+            if (forwarded != null)
+                forwarded.clear();
+        }
 
-                byteBuffer.clear();
+        /**
+         * A client whose request header is still being written from its buffer.
+         */
+        public boolean isForwardingHeader() {
+            return forwarded != null && forwarded.hasRemaining();
+        }
+
+        /**
+         * A client whose request body is still being streamed to the upstream.
+         */
+        public boolean isSendingBody() {
+            return isClient && state == State.HTTP && httpRequest != null && !httpRequest.complete;
+        }
 
+        /**
+         * Move what fits of the request body from buffer behind the forwarded header. Once the
+         * body is complete, whatever follows it is a pipelined request. False if the pool ran
+         * out of buffers.
+         */
+        public boolean relayRequestBody() {
+            // the body starts behind the header, once it is written
+            if (isForwardingHeader())
                 return true;
+
+            if (!httpRequest.complete) {
+                int room = Math.max(MAX_BODY_BUFFERED - requestBuffer.size(), 0);
+                int n = httpRequest.feedBody(buffer, 0, Math.min(buffer.size(), room));
+                if (!buffer.transferTo(requestBuffer, n))
+                    return false;
             }
 
-            return false;
+            if (httpRequest.complete)
+                scanPipeline(pipelineDepth);
+
+            return true;
+        }
+
+        /**
+         * Count the complete requests queued behind the one in flight, up to depth. A request
+         * that cannot be parsed blocks the queue, the error is reported once it is its turn;
+         * so does a request with a body, where the next one starts is known once it is streamed.
+         */
+        public void scanPipeline(int depth) {
+            if (lookahead == null)
+                lookahead = new HttpRequest();
+
+            while (pipelined < depth && !pipelineBlocked) {
+                int result = lookahead.parse(buffer, buffer.size());
+                if (result == HttpBase.PARSE_INCOMPLETE)
+                    return;
+
+                if (result == HttpBase.PARSE_ERROR) {
+                    pipelineBlocked = true;
+                    return;
+                }
+
+                pipelined++;
+                pipelineScanned = lookahead.hdrSize;
+                if (lookahead.hasBody()) {
+                    pipelineBlocked = true;
+                    return;
+                }
+
+                lookahead.reset();
+                lookahead.restartAt(pipelineScanned);
+            }
         }
 
-        public boolean handleHttpResponse() {
-            int pos = byteBuffer.position();
+        /**
+         * The request at the head of buffer is dispatched, drop its header and keep what
+         * follows it.
+         */
+        public void consumeRequest(int length) {
+            buffer.skip(length);
+
+            if (pipelineScanned >= length) {
+                // it was one of the queued ones
+                pipelined--;
+                pipelineScanned -= length;
+            }
+
+            if (lookahead != null) {
+                lookahead.reset();
+                lookahead.restartAt(pipelineScanned);
+            }
+            pipelineBlocked = false;
+        }
 
-            int len = HttpResponse.endOfEmptyLine(byteBuffer.array(), pos);
-            if (len > 0) {
-                httpResponse = new HttpResponse().parseResponse(new String(byteBuffer.array(), 0, len));
+        /**
+         * Whether a read has somewhere to go: a header being parsed may grow the buffer,
+         * relayed bytes only fill what is left of the last segment, so reading pauses while
+         * the other side is behind.
+         */
+        public boolean canRead() {
+            if (throttled || starved)
+                return false;
+            // the request stays in buffer until it is clear whether it is forwarded itself
+            if (state == State.WAITING || isForwardingHeader())
+                return false;
+            if (isSendingBody())
+                return requestBuffer.size() < MAX_BODY_BUFFERED && (buffer.isEmpty() || buffer.hasRoom());
+            if (isClient && state == State.HTTP)
+                return pipelined < pipelineDepth && !pipelineBlocked;
+
+            return isParsingHeader() || buffer.isEmpty() || buffer.hasRoom();
+        }
 
+        /**
+         * Whether there is something to write to this side: a cached response, relayable bytes
+         * from the other side, or the other side's close to finish up.
+         */
+        public boolean hasPendingWrite() {
+            if (throttled)
+                return false;
+            if (cacheSource != null || interim != null)
                 return true;
+            if (joined != null)
+                return state == State.HTTP && joinedOffset < joined.length();
+            if (counterpartSlctKey == null)
+                return false;
+            if (!counterpartSlctKey.isValid())
+                return true;
+
+            SocketChannelAtt counterpartAtt = (SocketChannelAtt) counterpartSlctKey.attachment();
+            return counterpartAtt.isForwardingHeader() ||
+                    (!counterpartAtt.outgoing().isEmpty() && counterpartAtt.isRelayable());
+        }
+
+        /**
+         * An upstream can go back to the pool once its response is complete and fully written.
+         */
+        public boolean isReusable() {
+            return !isClient && !connecting && state == State.IDLE && buffer.isEmpty() &&
+                    httpResponse != null && httpResponse.complete && !httpResponse.connectionClose &&
+                    selectionKey.isValid();
+        }
+
+        /**
+         * Continue parsing the request header with the bytes read so far, the request and its
+         * header views are reused for every request of the connection.
+         */
+        public int handleHttpRequest() {
+            if (httpRequest == null)
+                httpRequest = new HttpRequest();
+
+            int result = httpRequest.parse(buffer, buffer.size());
+            if (result == HttpBase.PARSE_DONE) {
+                logHostLength = httpRequest.copyHost(logHost);
+                switch (httpRequest.type) {
+                    case HttpRequest.CONNECT_TYPE -> state = State.CONNECT;
+                    case HttpRequest.NOT_IMPLEMENTED -> AsyncLog.get().message(AsyncLog.WARN_LEVEL, "unsupported request type", httpRequest.type);
+                    default -> state = State.HTTP;
+                }
             }
 
-            return false;
+            return result;
+        }
+
+        /**
+         * Track the response framing with the bytes just read into buffer[from, to).
+         */
+        public int handleHttpResponse(int from, int to) {
+            if (httpResponse == null)
+                httpResponse = new HttpResponse();
+
+            return httpResponse.feed(buffer, from, to);
+        }
+
+        /**
+         * Bytes of an upstream's buffer may only be relayed once the response header is
+         * parsed, its views point into the buffer until then.
+         */
+        public boolean isRelayable() {
+            return isClient || state != State.HTTP || (httpResponse != null && httpResponse.headerComplete);
         }
 
         public void updateBytesRead(int num) {
             bytesRead += num;
         }
 
-        public void updateBytesWritten(int num) {
+        public void updateBytesWritten(long num) {
             bytesWritten += num;
         }
 
+        /**
+         * When the connection times out unless it is active meanwhile, Long.MAX_VALUE if it
+         * does not: a connect has its own deadline, a client's request header has to arrive in
+         * time once started and a request has to be done in time. Otherwise a connection in
+         * use lasts as long as either side of the pair reads or writes, a pooled upstream is
+         * left to the pool.
+         */
+        public long deadline() {
+            if (connecting && connectDeadline != 0)
+                return connectDeadline;
+            if (poolEntry != null && poolEntry.pooled)
+                return Long.MAX_VALUE;
+            if (isClient && state == State.IDLE)
+                return buffer.isEmpty() ? lastActive + idleTimeout : headerStart + headerTimeout;
+
+            long active = lastActive;
+            if (counterpartSlctKey != null)
+                active = Math.max(active, ((SocketChannelAtt) counterpartSlctKey.attachment()).lastActive);
+
+            long deadline = active + idleTimeout;
+            if (state == State.HTTP || state == State.WAITING)
+                deadline = Math.min(deadline, requestDeadline);
+
+            return deadline;
+        }
+
+        /**
+         * Bytes a client read and was written, through its tunnel included.
+         */
+        public long transferred() {
+            if (tunnel == null)
+                return transferred;
+
+            return transferred + tunnel.getBytesToClient() + tunnel.getBytesToUpstream();
+        }
+
         public boolean isReadComplete() {
-            return httpResponse != null && bytesRead == httpResponse.hdrSize + httpResponse.contentLen;
+            return httpResponse != null && httpResponse.complete;
         }
 
         public boolean isWriteComplete() {
-            return httpResponse != null && bytesWritten == httpResponse.hdrSize + httpResponse.contentLen;
+            return isReadComplete() && bytesWritten >= httpResponse.messageLength;
         }
 
         public void reset() {
             bytesRead = 0;
             bytesWritten = 0;
-            httpResponse = null;
-            byteBuffer.clear();
+            cacheKey = null;
+            revalidating = null;
+            capture = null;
+            headerHandled = false;
+            firstByteSeen = false;
+            if (flight != null) {
+                flight.fail();
+                flight = null;
+            }
+            if (httpResponse != null)
+                httpResponse.reset();
+            buffer.clear();
         }
     }
 
     IOMultiplexProxyServer(int port) throws IOException {
-        super(port);
-        this.selector = Selector.open();
+        this(port, 1, Balance.ROUND_ROBIN);
+    }
+
+    /**
+     * With a single worker, that worker also accepts (the original single-threaded server).
+     * With more, a dedicated acceptor runs on the calling thread and hands each accepted
+     * client to one of the workers.
+     */
+    IOMultiplexProxyServer(int port, int workerCount, Balance balance) throws IOException {
+        this(port, workerCount, balance, DEFAULT_MAX_BUFFER_MEMORY);
+    }
+
+    /**
+     * maxBufferMemory caps the off-heap memory of all connection buffers, split evenly
+     * between the workers.
+     */
+    IOMultiplexProxyServer(int port, int workerCount, Balance balance, long maxBufferMemory) throws IOException {
+        this(port, workerCount, balance, maxBufferMemory, DnsResolver.SYSTEM);
+    }
+
+    IOMultiplexProxyServer(int port, int workerCount, Balance balance, long maxBufferMemory,
+                           DnsResolver dnsResolver) throws IOException {
+        this(port, workerCount, balance, maxBufferMemory, dnsResolver, null);
+    }
+
+    /**
+     * diskCacheDirectory adds a disk tier to the response cache, its segments are reused
+     * across restarts. Null caches in memory only.
+     */
+    IOMultiplexProxyServer(int port, int workerCount, Balance balance, long maxBufferMemory,
+                           DnsResolver dnsResolver, Path diskCacheDirectory) throws IOException {
+        super(port, new Metrics(workerCount + 1));
+
+        if (workerCount < 1)
+            throw new IllegalArgumentException("Worker count must be positive: " + workerCount);
+
+        this.balance = balance;
+        this.dnsCache = new DnsCache(dnsResolver, DNS_POSITIVE_TTL_MILLIS, DNS_NEGATIVE_TTL_MILLIS,
+                DNS_CACHE_SIZE, DNS_THREADS);
+        this.responseCache = new ResponseCache(RESPONSE_CACHE_MAX_BYTES, RESPONSE_CACHE_MAX_ENTRY_BYTES,
+                diskCacheDirectory == null ? null :
+                        new DiskCache(diskCacheDirectory, DISK_CACHE_SEGMENT_SIZE, DISK_CACHE_MAX_BYTES));
+        this.inFlight = new InFlightTable(MAX_SHARED_RESPONSE_BYTES);
+        this.addressStats = new AddressStats(ADDRESS_STATS_SIZE, ADDRESS_FAILURE_PENALTY_MILLIS);
+        this.workers = new Reactor[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Reactor(i, maxBufferMemory / workerCount);
+        }
+
+        metrics.gauge("proxy_buffer_leased_bytes", "Off-heap connection buffer bytes in use.", () -> {
+            long leased = 0;
+            for (Reactor worker : workers)
+                leased += worker.pool.getLeasedBytes();
+            return leased;
+        });
+        metrics.gauge("proxy_upstreams_idle", "Idle pooled upstream connections.", () -> {
+            long idle = 0;
+            for (Reactor worker : workers)
+                idle += worker.upstreams.size();
+            return idle;
+        });
+        metrics.counter("proxy_cache_hits_total", "Requests answered from the response cache.", responseCache::getHits);
+        metrics.counter("proxy_cache_misses_total", "Cache lookups that went to the upstream.", responseCache::getMisses);
+        metrics.counter("proxy_admission_rejected_connections_total", "Client connections refused over a connection limit.", () -> admission.getRejectedConnections());
+        metrics.counter("proxy_admission_limited_requests_total", "Requests refused over a client's request rate.", () -> admission.getLimitedRequests());
+        metrics.counter("proxy_admission_throttled_total", "Times a client was paused over its byte rate.", () -> admission.getThrottled());
+        metrics.counter("proxy_connect_attempts_total", "Upstream connect attempts, one per address tried.", addressStats::getAttempts);
+        metrics.counter("proxy_connect_failures_total", "Upstream connect attempts refused, failed or timed out.", addressStats::getFailures);
+        metrics.counter("proxy_connect_fallbacks_total", "Upstream connects won by an address other than the first tried.", addressStats::getFallbacks);
+        metrics.counter("proxy_coalesced_requests_total", "GETs answered with the response to the same GET in flight.", inFlight::getCoalesced);
     }
 
+    /**
+     * With SO_REUSEPORT every worker accepts from a listener of its own on the calling thread's
+     * behalf, the kernel spreads new connections between them and between the processes
+     * listening on the same port. Otherwise the acceptor hands them to the workers.
+     */
     @Override
     void runServer() {
         try {
-            ServerSocketChannel serverSocket = ServerSocketChannel.open();
-            SocketAddress socketAddress = new InetSocketAddress("localhost", port);
-            serverSocket.bind(socketAddress);
+            Reactor main;
+            if (reusePort) {
+                main = workers[0];
+                for (Reactor worker : workers)
+                    worker.listen(openListener());
+            } else {
+                ServerSocketChannel listener = openListener();
+                main = workers.length == 1 ? workers[0] : new Reactor(-1, 0);
+                main.listen(listener);
+                acceptor = main;
+            }
 
-            serverSocket.configureBlocking(false);
+            for (Reactor worker : workers) {
+                if (worker != main) {
+                    Thread thread = new Thread(worker, "proxy-worker-" + worker.id);
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            }
 
-            serverSocket.register(selector, SelectionKey.OP_ACCEPT);
+            main.run();
+        } catch (IOException e) {
+            AsyncLog.get().error("server failed to start", e);
+        }
+    }
 
-            while (true) {
-                select();
+    private ServerSocketChannel openListener() throws IOException {
+        ServerSocketChannel serverSocket = ServerSocketChannel.open();
+        try {
+            if (reusePort) {
+                if (!serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+                    throw new IOException("SO_REUSEPORT is not supported on this platform");
+
+                serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
             }
+
+            // accepted connections inherit it, a window over 64K is only negotiated this way
+            if (receiveBufferSize > 0)
+                serverSocket.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+
+            serverSocket.bind(new InetSocketAddress(bindHost, port), backlog);
+            serverSocket.configureBlocking(false);
         } catch (IOException e) {
-            e.printStackTrace();
+            serverSocket.close();
+            throw e;
         }
+
+        return serverSocket;
     }
 
-    private void select() {
-        // non-blocking select
-        try {
-            selector.select();
+    /**
+     * Stop accepting and let the open connections finish, for a restart without downtime: a
+     * new process listening on the same port with SO_REUSEPORT takes the new connections
+     * meanwhile. Idle clients are closed right away, the others once the requests they sent
+     * are answered. True if every connection closed within timeoutMillis.
+     */
+    boolean drain(long timeoutMillis) {
+        draining = true;
+
+        // only a dedicated acceptor runs besides the workers
+        Reactor acceptor = this.acceptor;
+        if (acceptor != null && acceptor.id < 0)
+            acceptor.execute(acceptor::stopListening);
+        for (Reactor worker : workers)
+            worker.execute(worker::stopListening);
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (getConnections() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
 
-            Set selectedKeys = selector.selectedKeys();
-            Iterator iterator = selectedKeys.iterator();
-            while (iterator.hasNext()) {
-                SelectionKey selectionKey = (SelectionKey) iterator.next();
-                iterator.remove();
+        return getConnections() == 0;
+    }
 
-                if (!selectionKey.isValid()) {
-                    // socket is closed
-                    continue;
-                }
+    int getConnections() {
+        int connections = 0;
+        for (Reactor worker : workers)
+            connections += worker.getConnections();
 
-                if (selectionKey.isAcceptable()) {
-                    handleAccept(selectionKey);
-                } else if (selectionKey.isReadable()) {
-                    handleRead(selectionKey);
-                } else if (selectionKey.isWritable()){
-                    handleWrite(selectionKey);
-                } else {
-                    System.out.println("Error, not implemented");
+        return connections;
+    }
+
+    /**
+     * How many requests a client may queue behind the one in flight.
+     */
+    void setPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth < 0)
+            throw new IllegalArgumentException("Pipeline depth must not be negative: " + pipelineDepth);
+
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * How long a connection may go without reads or writes on either side, a client may take
+     * to send a request header once started, and a request may take until its response is
+     * written.
+     */
+    void setTimeouts(long idleMillis, long headerMillis, long requestMillis) {
+        if (idleMillis <= 0 || headerMillis <= 0 || requestMillis <= 0)
+            throw new IllegalArgumentException("Timeouts must be positive: " + idleMillis + ", " + headerMillis + ", " + requestMillis);
+
+        this.idleTimeout = idleMillis;
+        this.headerTimeout = headerMillis;
+        this.requestTimeout = requestMillis;
+    }
+
+    /**
+     * Listen on bindHost, on a listener per worker bound with SO_REUSEPORT if reusePort is set.
+     */
+    void setListener(String bindHost, boolean reusePort, int backlog) {
+        if (backlog <= 0)
+            throw new IllegalArgumentException("Backlog must be positive: " + backlog);
+
+        this.bindHost = bindHost;
+        this.reusePort = reusePort;
+        this.backlog = backlog;
+    }
+
+    /**
+     * Options of the client and upstream connections, a buffer size of 0 keeps the system's
+     * default.
+     */
+    void setSocketOptions(boolean tcpNoDelay, int sendBufferSize, int receiveBufferSize) {
+        if (sendBufferSize < 0 || receiveBufferSize < 0)
+            throw new IllegalArgumentException("Buffer sizes must not be negative: " + sendBufferSize + ", " + receiveBufferSize);
+
+        this.tcpNoDelay = tcpNoDelay;
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * Connection limits and client rates for the clients accepted from now on.
+     */
+    void setAdmission(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    Reactor[] getWorkers() {
+        return workers;
+    }
+
+    /**
+     * One line per worker, to check how evenly connections are spread.
+     */
+    String loadReport() {
+        StringBuilder sb = new StringBuilder();
+
+        for (Reactor worker : workers) {
+            sb.append("worker-").append(worker.id)
+                    .append(" connections=").append(worker.getConnections())
+                    .append(" accepted=").append(worker.getAccepted())
+                    .append(" keys=").append(worker.getKeysProcessed())
+                    .append(" poolHitRate=").append(String.format("%.3f", worker.pool.hitRate()))
+                    .append(" offHeap=").append(worker.pool.getOffHeapBytes())
+                    .append(" leased=").append(worker.pool.getLeasedBytes())
+                    .append(" poolExhausted=").append(worker.pool.getExhausted())
+                    .append(" idleUpstreams=").append(worker.upstreams.size())
+                    .append(" upstreamHits=").append(worker.upstreams.getHits())
+                    .append(" upstreamMisses=").append(worker.upstreams.getMisses())
+                    .append(" timers=").append(worker.getTimers())
+                    .append('\n');
+        }
+
+        sb.append("dns cached=").append(dnsCache.size())
+                .append(" hits=").append(dnsCache.getHits())
+                .append(" lookups=").append(dnsCache.getMisses())
+                .append('\n');
+
+        sb.append("cache entries=").append(responseCache.size())
+                .append(" bytes=").append(responseCache.getTotalBytes())
+                .append(" hits=").append(responseCache.getHits())
+                .append(" misses=").append(responseCache.getMisses())
+                .append(" revalidated=").append(responseCache.getRevalidations())
+                .append(" bytesServed=").append(responseCache.getBytesServed())
+                .append('\n');
+
+        sb.append("connect addresses=").append(addressStats.size())
+                .append(" attempts=").append(addressStats.getAttempts())
+                .append(" failures=").append(addressStats.getFailures())
+                .append(" fallbacks=").append(addressStats.getFallbacks())
+                .append('\n');
+
+        sb.append("inflight fetches=").append(inFlight.size())
+                .append(" coalesced=").append(inFlight.getCoalesced())
+                .append(" abandoned=").append(inFlight.getAbandoned())
+                .append('\n');
+
+        AdmissionControl admission = this.admission;
+        sb.append("admission clients=").append(admission.size())
+                .append(" open=").append(admission.getOpen())
+                .append(" rejected=").append(admission.getRejectedConnections())
+                .append(" limited=").append(admission.getLimitedRequests())
+                .append(" throttled=").append(admission.getThrottled())
+                .append('\n');
+
+        DiskCache disk = responseCache.getDisk();
+        if (disk != null) {
+            sb.append("disk entries=").append(disk.size())
+                    .append(" bytes=").append(disk.getDiskBytes())
+                    .append(" hits=").append(responseCache.getDiskHits())
+                    .append(" dropped=").append(disk.getDropped())
+                    .append('\n');
+        }
+
+        return sb.toString();
+    }
+
+    private Reactor nextWorker() {
+        if (workers.length == 1)
+            return workers[0];
+
+        switch (balance) {
+            case LEAST_LOADED -> {
+                Reactor least = workers[0];
+                for (int i = 1; i < workers.length; i++) {
+                    if (workers[i].getConnections() < least.getConnections())
+                        least = workers[i];
                 }
+                return least;
+            }
+            default -> {
+                Reactor worker = workers[nextWorker];
+                nextWorker = (nextWorker + 1) % workers.length;
+                return worker;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
 
-    private void handleAccept(SelectionKey selectionKey) {
-        ServerSocketChannel socketChannel = (ServerSocketChannel) selectionKey.channel();
+    /**
+     * Accept a client on reactor's listener and hand it to a worker, false if there was none
+     * to accept.
+     */
+    private boolean accept(Reactor reactor, ServerSocketChannel listener) {
         SocketChannel clientSocket = null;
 
         try {
-            clientSocket = socketChannel.accept();
+            clientSocket = listener.accept();
 
             if (clientSocket == null) {
-                System.out.println("accept client socket is null");
-                return;
+                if (AsyncLog.DEBUG) AsyncLog.get().message(AsyncLog.DEBUG_LEVEL, "accept returned no socket", 0);
+                return false;
             }
 
-            System.out.println("http request accepted");
+            if (AsyncLog.DEBUG) AsyncLog.get().message(AsyncLog.DEBUG_LEVEL, "client accepted, total", metrics.accepts.get() + 1);
 
             clientSocket.configureBlocking(false);
+            configureSocket(clientSocket);
+
+            // over a connection limit: refused before a worker or a buffer is involved
+            InetAddress address = ((InetSocketAddress) clientSocket.getRemoteAddress()).getAddress();
+            AdmissionControl.Client admitted = admission.admit(address, System.currentTimeMillis());
+            if (admitted == null) {
+                reject(reactor, clientSocket, SERVICE_UNAVAILABLE_RESPONSE);
+                closeQuietly(clientSocket);
+                return true;
+            }
+
+            // a worker with a listener of its own keeps what it accepts
+            Reactor worker = reactor == acceptor ? nextWorker() : reactor;
+            if (worker == reactor) {
+                worker.registerClient(clientSocket, admitted);
+            } else {
+                // registering on a selector blocked in select() would block the acceptor
+                SocketChannel accepted = clientSocket;
+                worker.execute(() -> worker.registerClient(accepted, admitted));
+            }
+
+            return true;
+        } catch (IOException e) {
+            AsyncLog.get().error("accept failed", e);
 
-            clientSocket.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE)
-                    .attach(new SocketChannelAtt(true));
-        } catch (ClosedChannelException e) {
-            e.printStackTrace();
+            if (clientSocket != null)
+                closeQuietly(clientSocket);
+
+            return false;
+        }
+    }
+
+    private void configureSocket(SocketChannel socketChannel) throws IOException {
+        socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+        if (sendBufferSize > 0)
+            socketChannel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+        if (receiveBufferSize > 0)
+            socketChannel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+    }
+
+    /**
+     * Answer a refused client without parsing anything: the canned response in one
+     * non-blocking write, then what it sent already is drained so closing it does not reset
+     * the connection before the response is read. The caller closes it.
+     */
+    private void reject(Reactor reactor, SocketChannel socketChannel, byte[] response) {
+        try {
+            socketChannel.write(ByteBuffer.wrap(response));
+            socketChannel.shutdownOutput();
+            socketChannel.read(reactor.scratch(REJECT_DRAIN_SIZE));
         } catch (IOException e) {
-            e.printStackTrace();
+            // it is closed anyway
         }
     }
 
@@ -212,213 +1176,1222 @@ public class IOMultiplexProxyServer extends ProxyServer{
         SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
         SocketChannelAtt attachment = (SocketChannelAtt) selectionKey.attachment();
 
-        ByteBuffer byteBuffer = attachment.getByteBuffer();
+        if (attachment.poolEntry != null && attachment.poolEntry.pooled) {
+            // an idle pooled upstream was closed by the server (or sent stray bytes)
+            attachment.reactor.upstreams.remove(attachment.poolEntry);
+            closeSocketChannel(selectionKey);
+            return;
+        }
 
-        // buffer is full (data in the buffer is not written yet)
-        if (!byteBuffer.hasRemaining())
+        BufferChain buffer = attachment.getBuffer();
+
+        // buffer is full (data in the buffer is not written yet) or the pool is exhausted
+        ByteBuffer target = buffer.writable(attachment.isParsingHeader());
+        if (target == null) {
+            if (attachment.isParsingHeader()) {
+                // OP_READ is dropped until a buffer comes back, it would fire again right away
+                attachment.starved = true;
+                attachment.reactor.pool.onRelease(() -> {
+                    attachment.starved = false;
+                    updateInterest(attachment);
+                });
+            }
             return;
+        }
 
         // read to buffer
-        int bytesRead = 0;
+        int from = buffer.size();
+        int bytesRead;
         try {
-            bytesRead = socketChannel.read(byteBuffer);
+            bytesRead = socketChannel.read(target);
         } catch (IOException e) {
-            closeSocketChannel(socketChannel);
+            closeSocketChannel(selectionKey);
+            return;
         }
 
         if (attachment.isClient()) {
-            handleClientRead(selectionKey, attachment, byteBuffer);
+            if (bytesRead < 0) {
+                // the client is gone, its upstream notices when it has nothing left to write
+                closeSocketChannel(selectionKey);
+                return;
+            }
+
+            attachment.transferred += bytesRead;
+            if (from == 0 && bytesRead > 0 && attachment.state == SocketChannelAtt.State.IDLE && !startHeader(attachment))
+                return;
+
+            handleClientRead(selectionKey, attachment, buffer);
+        } else if (bytesRead < 0) {
+            handleServerEndOfStream(selectionKey, attachment);
         } else {
-            handleServerRead(attachment, bytesRead);
+            handleServerRead(selectionKey, attachment, from, bytesRead);
         }
     }
 
-    private void handleClientRead(SelectionKey selectionKey, SocketChannelAtt attachment, ByteBuffer byteBuffer) {
+    private void handleClientRead(SelectionKey selectionKey, SocketChannelAtt attachment, BufferChain buffer) {
         switch (attachment.state) {
             case IDLE -> {
-                HttpRequest oldHttpRequest = attachment.httpRequest;
-
-                boolean isValidRequest = attachment.handleHttpRequest();
-
-                HttpRequest newHttpRequest = attachment.httpRequest;
-
-                if (isValidRequest) {
-                    // check if a server socket can be reused
-                    if (!isTheSameTargetAddr(oldHttpRequest, newHttpRequest)) {
-                        // create a socket to connect the target server, register the socket
-                        SelectionKey serverSelectionKey = registerServerSocketChannel(newHttpRequest);
-
-                        // fail to connect the target server
-                        if (serverSelectionKey == null) {
-                            closeSocketChannel((SocketChannel) selectionKey.channel());
-
-                            return;
-                        }
-
-                        // set selection key for both parts
-                        ((SocketChannelAtt) serverSelectionKey.attachment()).setCounterpartSlctKey(selectionKey);
-                        attachment.setCounterpartSlctKey(serverSelectionKey);
-                    }
-
-                    // reset the buffer
-                    byteBuffer.clear();
-
-                    // set the state to GET / CONNECT and initialize server socket buffer
-                    switch (newHttpRequest.type) {
-                        case HttpRequest.GET_TYPE -> {
-                            attachment.state = SocketChannelAtt.State.GET;
-
-                            byteBuffer.put(attachment.httpRequest.buildGetRequest().getBytes(StandardCharsets.UTF_8));
-                        }
-                        case HttpRequest.CONNECT_TYPE -> {
-                            attachment.state = SocketChannelAtt.State.CONNECT;
-
-                            SelectionKey counterpartSlctKey = attachment.getCounterpartSlctKey();
-                            SocketChannelAtt counterpartAtt = (SocketChannelAtt) counterpartSlctKey.attachment();
-                            ByteBuffer counterpartBuffer = counterpartAtt.getByteBuffer();
-                            counterpartBuffer.put(CONNECT_SUCCESS_RESPONSE);
-                        }
-                        default -> throw new IllegalStateException("Unexpected http request type: " + newHttpRequest.type);
-                    }
-                } else if (!byteBuffer.hasRemaining()) {
-                    // HTTP request size is larger than the buffer size
-                    // grow the buffer size to 2x
-                    // (rarely happen for GET and CONNECT request using a 2048 bytes buffer)
-                    int oldCap = byteBuffer.capacity();
-                    ByteBuffer newByteBuffer = ByteBuffer.wrap(Arrays.copyOf(byteBuffer.array(), oldCap << 1))
-                            .position(oldCap);
-
-                    attachment.changeByteBufferTo(newByteBuffer);
+                int parseResult = attachment.handleHttpRequest();
+
+                if (parseResult == HttpBase.PARSE_DONE) {
+                    attachment.requestStartNanos = System.nanoTime();
+                    attachment.requestDeadline = System.currentTimeMillis() + requestTimeout;
+                    dispatchRequest(selectionKey, attachment, true);
+                } else if (parseResult == HttpBase.PARSE_ERROR) {
+                    // malformed, or larger than the parser's maximum header size
+                    closeSocketChannel(selectionKey);
                 }
 
-                // else: not changing state, nor growing the buffer (http request is not complete yet)
+                // else: not changing state (http request is not complete yet), the buffer grows
+                // by another segment on the next read if it is full
+            }
+            case HTTP -> {
+                // the body streams behind the forwarded header, what follows it is queued
+                if (!attachment.relayRequestBody() && attachment.getCounterpartSlctKey() != null)
+                    failResponse(attachment.getCounterpartSlctKey());
             }
-            case GET -> {} // do nothing
             case CONNECT -> {} // do nothing
             default -> {}
         }
     }
 
-    private void handleServerRead(SocketChannelAtt attachment, int bytesRead) {
-        attachment.updateBytesRead(bytesRead);
+    /**
+     * A complete request header is at the head of the client's buffer: answer it from the
+     * cache, wait for the same GET already in flight, or forward it to an upstream.
+     */
+    private void dispatchRequest(SelectionKey selectionKey, SocketChannelAtt attachment, boolean coalesce) {
+        HttpRequest newHttpRequest = attachment.httpRequest;
 
-        switch (attachment.state) {
-            case IDLE -> {} // server never has read() when IDLE
-            case GET -> { // parse response hdr
-                if (attachment.httpResponse == null) {
-                    // if null, always try to get the complete response hdr
-                    attachment.handleHttpResponse();
-                } else if (attachment.isReadComplete()) {
-                    System.out.println("Get read complete: " + attachment.bytesRead);
-
-                    attachment.state = SocketChannelAtt.State.IDLE;
-                }
+        if (newHttpRequest.type == HttpRequest.NOT_IMPLEMENTED) {
+            closeSocketChannel(selectionKey);
+
+            return;
+        }
+
+        // normally handed back after the previous response, only left over on errors
+        releaseUpstream(attachment);
+
+        // a fresh cached response is written without going to the target server
+        String cacheKey = null;
+        ResponseCache.Entry cached = null;
+        if (newHttpRequest.type == HttpRequest.GET_TYPE && !newHttpRequest.hasBody() && !newHttpRequest.hasCredentials &&
+                !newHttpRequest.upgrade) {
+            cacheKey = newHttpRequest.cacheKey();
+            if (!newHttpRequest.noCache)
+                cached = responseCache.get(cacheKey, System.currentTimeMillis());
+
+            if (cached != null && cached.isFresh(System.currentTimeMillis())) {
+                attachment.consumeRequest(newHttpRequest.hdrSize);
+                serveCached(attachment, cached);
+                return;
             }
-            case CONNECT -> {} // do nothing
-            default -> {}
+
+            // the same GET is already on its way to the upstream, its response is shared
+            if (coalesce && !newHttpRequest.noCache && joinFlight(selectionKey, attachment, cacheKey))
+                return;
         }
-    }
 
-    private void handleWrite(SelectionKey selectionKey) {
-        SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
-        SocketChannelAtt attachment = (SocketChannelAtt) selectionKey.attachment();
+        // borrow a warm connection to the target server, or create and register a new one
+        SelectionKey serverSelectionKey = borrowUpstream(attachment.reactor, newHttpRequest);
+        if (serverSelectionKey == null)
+            serverSelectionKey = registerServerSocketChannel(attachment.reactor, newHttpRequest);
 
-        SelectionKey counterpartSlctKey = attachment.getCounterpartSlctKey();
-        if (counterpartSlctKey == null) {
-            // client is not ready for read yet
-            return;
-        } else if (!counterpartSlctKey.isValid()) {
-            if (attachment.isClient()) System.out.println("server closed the connection");
+        // fail to connect the target server
+        if (serverSelectionKey == null) {
+            closeSocketChannel(selectionKey);
 
-            // the connection is closed on the other end
-            closeSocketChannel(socketChannel);
             return;
         }
 
-        SocketChannelAtt counterpartAtt = (SocketChannelAtt) counterpartSlctKey.attachment();
+        // set selection key for both parts
+        ((SocketChannelAtt) serverSelectionKey.attachment()).setCounterpartSlctKey(selectionKey);
+        attachment.setCounterpartSlctKey(serverSelectionKey);
 
-        ByteBuffer counterpartBuffer = counterpartAtt.getByteBuffer();
+        // a reused upstream starts over for this request
+        SocketChannelAtt serverAtt = (SocketChannelAtt) attachment.getCounterpartSlctKey().attachment();
+        serverAtt.reset();
+        serverAtt.requestStartNanos = attachment.requestStartNanos;
+        serverAtt.requestDeadline = attachment.requestDeadline;
+        armTimer(attachment);
+        armTimer(serverAtt);
 
-        int toBeWritten = counterpartBuffer.position();
-        int bytesWritten = 0;
-        if (toBeWritten > 0) {
-            counterpartBuffer.flip();
+        // set the state to HTTP / CONNECT and initialize server socket buffer
+        if (newHttpRequest.type == HttpRequest.CONNECT_TYPE) {
+            attachment.state = SocketChannelAtt.State.CONNECT;
+            serverAtt.state = SocketChannelAtt.State.CONNECT;
 
-            try {
-                bytesWritten = socketChannel.write(counterpartBuffer);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            // bytes sent right behind the CONNECT are the tunnel's first
+            attachment.consumeRequest(newHttpRequest.hdrSize);
 
-            counterpartBuffer.compact(); // in case of partial write\
+            // a new upstream answers the client once its connect completes
+            if (!serverAtt.connecting && !serverAtt.getBuffer().put(CONNECT_SUCCESS_RESPONSE))
+                failResponse(attachment.getCounterpartSlctKey());
+
+            return;
         }
 
-        if (attachment.isClient())
-            handleClientWrite(selectionKey, bytesWritten);
-    }
+        attachment.state = SocketChannelAtt.State.HTTP;
+        serverAtt.state = SocketChannelAtt.State.HTTP;
+        serverAtt.cacheKey = cacheKey;
+        serverAtt.revalidating = cached;
 
-    private void handleClientWrite(SelectionKey clientSlctKey, int bytesWritten) {
+        // the first GET for a target leads, the same GETs arriving meanwhile wait for it
+        if (cacheKey != null && coalesce)
+            serverAtt.flight = inFlight.lead(cacheKey);
+
+        // a response to HEAD has no body whatever its headers say
+        if (serverAtt.httpResponse == null)
+            serverAtt.httpResponse = new HttpResponse();
+        serverAtt.httpResponse.expectNoBody(newHttpRequest.isHead());
+
+        // the header is written from the client's buffer, spliced where the proxy changes it;
+        // a stale cached response is revalidated with its validators
+        byte[] validators = cached == null ? null : cached.validators;
+        newHttpRequest.forwardHeader(attachment.forwarded, validators);
+
+        // the proxy asks for the body itself, it is streamed as it arrives anyway
+        if (newHttpRequest.expectContinue && !newHttpRequest.complete)
+            attachment.interim = ByteBuffer.wrap(CONTINUE_RESPONSE);
+    }
+
+    private boolean joinFlight(SelectionKey clientSlctKey, SocketChannelAtt clientAtt, String cacheKey) {
+        InFlightTable.Waiter waiter = new InFlightTable.Waiter(clientAtt.reactor, () -> onFlight(clientSlctKey));
+        InFlightTable.Flight flight = inFlight.join(cacheKey, waiter);
+        if (flight == null)
+            return false;
+
+        clientAtt.joined = flight;
+        clientAtt.joinedOffset = 0;
+        clientAtt.state = SocketChannelAtt.State.WAITING;
+
+        return true;
+    }
+
+    /**
+     * The flight a client waits for moved on, run on the client's reactor. Until its bytes are
+     * shared the request is still in the client's buffer, so it can still be forwarded itself.
+     */
+    private void onFlight(SelectionKey clientSlctKey) {
+        SocketChannelAtt clientAtt = (SocketChannelAtt) clientSlctKey.attachment();
+        InFlightTable.Flight flight = clientAtt.joined;
+        if (flight == null || !clientSlctKey.isValid())
+            return;
+
+        int flightState = flight.state();
+        boolean waiting = clientAtt.state == SocketChannelAtt.State.WAITING;
+
+        if (flightState == InFlightTable.ABANDONED || (flightState == InFlightTable.FAILED && waiting)) {
+            clientAtt.joined = null;
+            clientAtt.state = SocketChannelAtt.State.IDLE;
+            dispatchRequest(clientSlctKey, clientAtt, false);
+        } else if (flightState == InFlightTable.FAILED) {
+            // part of the response is written already
+            closeSocketChannel(clientSlctKey);
+            return;
+        } else if (flightState != InFlightTable.PENDING) {
+            if (waiting) {
+                clientAtt.consumeRequest(clientAtt.httpRequest.hdrSize);
+                clientAtt.state = SocketChannelAtt.State.HTTP;
+            }
+
+            // everything received was written before the flight completed
+            if (flight.state() == InFlightTable.COMPLETE && clientAtt.joinedOffset == flight.length())
+                finishJoined(clientSlctKey, clientAtt);
+        }
+
+        if (clientSlctKey.isValid())
+            updateInterest(clientAtt);
+    }
+
+    /**
+     * The response is written, the next pipelined request (if any is buffered) goes next.
+     */
+    private void nextRequest(SelectionKey clientSlctKey, SocketChannelAtt clientAtt) {
+        if (!clientSlctKey.isValid())
+            return;
+
+        if (clientAtt.buffer.isEmpty()) {
+            // draining: the connection ends with the last request the client sent
+            if (draining)
+                closeSocketChannel(clientSlctKey);
+            return;
+        }
+
+        // a header read along with the previous request is timed and counted from now on
+        if (!startHeader(clientAtt))
+            return;
+
+        handleClientRead(clientSlctKey, clientAtt, clientAtt.buffer);
+    }
+
+    /**
+     * The first bytes of a client's request header: its timeout starts and it takes one of the
+     * client's requests. False if the client is over its request rate, it is answered with a
+     * 429 and closed.
+     */
+    private boolean startHeader(SocketChannelAtt clientAtt) {
+        long now = clientAtt.reactor.now;
+        clientAtt.headerStart = now;
+        armTimer(clientAtt);
+
+        if (clientAtt.admitted == null || clientAtt.admitted.tryRequest(now))
+            return true;
+
+        SelectionKey clientSlctKey = clientAtt.selectionKey;
+        reject(clientAtt.reactor, (SocketChannel) clientSlctKey.channel(), TOO_MANY_REQUESTS_RESPONSE);
+        closeSocketChannel(clientSlctKey);
+
+        return false;
+    }
+
+    private void handleServerRead(SelectionKey selectionKey, SocketChannelAtt attachment, int from, int bytesRead) {
+        attachment.updateBytesRead(bytesRead);
+
+        if (!attachment.firstByteSeen && bytesRead > 0 && attachment.state == SocketChannelAtt.State.HTTP) {
+            attachment.firstByteSeen = true;
+            metrics.timeToFirstByte.record(attachment.reactor.stripe, System.nanoTime() - attachment.requestStartNanos);
+        }
+
+        switch (attachment.state) {
+            case IDLE -> {} // server never has read() when IDLE
+            case HTTP -> { // track the response framing as the bytes pass through
+                BufferChain buffer = attachment.getBuffer();
+                int to = buffer.size();
+                int result = attachment.handleHttpResponse(from, to);
+
+                if (result == HttpBase.PARSE_ERROR) {
+                    failResponse(selectionKey);
+                    return;
+                }
+
+                if (attachment.httpResponse.headerComplete) {
+                    if (!attachment.headerHandled) {
+                        attachment.headerHandled = true;
+                        if (handleResponseHeader(attachment))
+                            return;
+
+                        // nothing is relayed before the header is complete, the copy starts at 0
+                        from = 0;
+                    }
+
+                    captureResponse(attachment, from, to);
+                    shareResponse(attachment, from, to);
+                }
+
+                if (result == HttpBase.PARSE_DONE) {
+                    if (AsyncLog.DEBUG) AsyncLog.get().message(AsyncLog.DEBUG_LEVEL, "response read complete, bytes", attachment.bytesRead);
+
+                    if (attachment.httpResponse.isSwitchingProtocols()) {
+                        // e.g. a WebSocket upgrade, both sides just relay from now on
+                        attachment.state = SocketChannelAtt.State.CONNECT;
+                        ((SocketChannelAtt) attachment.getCounterpartSlctKey().attachment()).state = SocketChannelAtt.State.CONNECT;
+                    } else {
+                        attachment.state = SocketChannelAtt.State.IDLE;
+                    }
+                }
+            }
+            case CONNECT -> {} // do nothing
+            default -> {}
+        }
+    }
+
+    /**
+     * The response header is complete: a 304 for a stale cached response is answered from the
+     * cache (true), anything cacheable starts being copied aside as it is relayed.
+     */
+    private boolean handleResponseHeader(SocketChannelAtt serverAtt) {
+        HttpResponse response = serverAtt.httpResponse;
+        long now = System.currentTimeMillis();
+
+        if (serverAtt.revalidating != null && response.statusCode == 304 && serverAtt.getCounterpartSlctKey() != null) {
+            ResponseCache.Entry entry = serverAtt.revalidating;
+            responseCache.refresh(entry, response.freshUntil(now), now - response.age() * 1000);
+
+            // the clients waiting for it find the entry fresh again
+            startFlight(serverAtt);
+
+            // the 304 itself is not relayed, the upstream is done with this request
+            serverAtt.getBuffer().clear();
+            serverAtt.state = SocketChannelAtt.State.IDLE;
+
+            SocketChannelAtt clientAtt = (SocketChannelAtt) serverAtt.getCounterpartSlctKey().attachment();
+            releaseUpstream(clientAtt);
+            serveCached(clientAtt, entry);
+
+            return true;
+        }
+
+        if (serverAtt.cacheKey != null)
+            serverAtt.capture = responseCache.capture(serverAtt.cacheKey, response, now);
+
+        startFlight(serverAtt);
+
+        return false;
+    }
+
+    // the response header decides whether the clients waiting for it share it
+    private void startFlight(SocketChannelAtt serverAtt) {
+        InFlightTable.Flight flight = serverAtt.flight;
+        if (flight == null)
+            return;
+
+        flight.start(serverAtt.httpResponse);
+        if (flight.state() != InFlightTable.SHARED)
+            serverAtt.flight = null;
+    }
+
+    private void shareResponse(SocketChannelAtt serverAtt, int from, int to) {
+        InFlightTable.Flight flight = serverAtt.flight;
+        if (flight == null)
+            return;
+
+        HttpResponse response = serverAtt.httpResponse;
+        if (response.complete)
+            to = (int) Math.min(to, from + response.messageLength - flight.length());
+
+        flight.append(serverAtt.getBuffer(), from, to);
+        if (response.complete)
+            flight.complete();
+
+        if (flight.state() != InFlightTable.SHARED)
+            serverAtt.flight = null;
+    }
+
+    private void captureResponse(SocketChannelAtt serverAtt, int from, int to) {
+        ResponseCache.Capture capture = serverAtt.capture;
+        if (capture == null)
+            return;
+
+        if (!capture.append(serverAtt.getBuffer(), from, to)) {
+            // too large to cache
+            serverAtt.capture = null;
+            return;
+        }
+
+        if (serverAtt.httpResponse.complete) {
+            responseCache.put(capture, serverAtt.httpResponse.messageLength);
+            serverAtt.capture = null;
+        }
+    }
+
+    private void serveCached(SocketChannelAtt clientAtt, ResponseCache.Entry entry) {
+        clientAtt.state = SocketChannelAtt.State.HTTP;
+        if (clientAtt.cacheViews == null) {
+            clientAtt.cacheViews = new ByteBuffer[3];
+            clientAtt.ageLine = ByteBuffer.allocate(ResponseCache.AGE_LINE_SIZE);
+        }
+
+        entry.source(clientAtt.cacheViews, clientAtt.ageLine, System.currentTimeMillis());
+        clientAtt.cacheSource = clientAtt.cacheViews;
+        clientAtt.cacheLength = clientAtt.cacheViews[0].remaining() + clientAtt.ageLine.remaining() +
+                clientAtt.cacheViews[2].remaining();
+        setInterest(clientAtt);
+    }
+
+    private void handleServerEndOfStream(SelectionKey selectionKey, SocketChannelAtt attachment) {
+        // a close-delimited body ends here, what is left in the buffer is still written to the client
+        if (attachment.state == SocketChannelAtt.State.HTTP && attachment.httpResponse != null &&
+                attachment.httpResponse.endOfStream()) {
+            attachment.state = SocketChannelAtt.State.IDLE;
+        }
+
+        closeSocketChannel(selectionKey);
+    }
+
+    private void failResponse(SelectionKey serverSlctKey) {
+        SelectionKey clientSlctKey = ((SocketChannelAtt) serverSlctKey.attachment()).getCounterpartSlctKey();
+        if (clientSlctKey != null)
+            closeSocketChannel(clientSlctKey);
+
+        closeSocketChannel(serverSlctKey);
+    }
+
+    private void handleWrite(SelectionKey selectionKey) {
+        SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
+        SocketChannelAtt attachment = (SocketChannelAtt) selectionKey.attachment();
+
+        if (attachment.cacheSource != null) {
+            writeCached(selectionKey, attachment);
+            return;
+        }
+
+        if (attachment.joined != null) {
+            writeJoined(selectionKey, attachment);
+            return;
+        }
+
+        if (attachment.interim != null && !writeInterim(selectionKey, attachment))
+            return;
+
+        SelectionKey counterpartSlctKey = attachment.getCounterpartSlctKey();
+        if (counterpartSlctKey == null) {
+            // client is not ready for read yet
+            return;
+        }
+
+        SocketChannelAtt counterpartAtt = (SocketChannelAtt) counterpartSlctKey.attachment();
+
+        BufferChain counterpartBuffer = counterpartAtt.outgoing();
+
+        if (!counterpartSlctKey.isValid() && counterpartBuffer.isEmpty()) {
+            // the connection is closed on the other end and everything it sent is written
+            if (attachment.isClient() && attachment.state == SocketChannelAtt.State.IDLE) {
+                // an idle client keeps its connection and gets a new upstream for its next request
+                attachment.setCounterpartSlctKey(null);
+                counterpartAtt.release();
+            } else {
+                if (AsyncLog.DEBUG && attachment.isClient()) AsyncLog.get().message(AsyncLog.DEBUG_LEVEL, "upstream closed the connection, state", attachment.state.ordinal());
+
+                closeSocketChannel(selectionKey);
+            }
+            return;
+        }
+
+        if (!counterpartAtt.isRelayable()) {
+            // closed before its response header was complete, nothing can be relayed anymore
+            if (!counterpartSlctKey.isValid())
+                closeSocketChannel(selectionKey);
+            return;
+        }
+
+        if (counterpartAtt.isForwardingHeader() && !writeForwardedHeader(selectionKey, counterpartAtt))
+            return;
+
+        long bytesWritten = 0;
+        if (!counterpartBuffer.isEmpty()) {
+            // gathering write, drained segments go back to the pool
+            try {
+                bytesWritten = counterpartBuffer.writeTo(socketChannel);
+            } catch (IOException e) {
+                AsyncLog.get().error("write failed", e);
+            }
+
+            if (attachment.isClient()) {
+                metrics.bytesToClient.add(bytesWritten);
+                attachment.transferred += bytesWritten;
+            } else {
+                metrics.bytesToUpstream.add(bytesWritten);
+            }
+        }
+
+        if (attachment.isClient()) {
+            handleClientWrite(selectionKey, bytesWritten);
+        } else if (counterpartAtt.isSendingBody() && !counterpartAtt.relayRequestBody()) {
+            // the write made room for more of the body waiting in the client's buffer
+            failResponse(selectionKey);
+            return;
+        }
+
+        if (attachment.state == SocketChannelAtt.State.CONNECT)
+            startTunnel(attachment, counterpartAtt);
+    }
+
+    /**
+     * Write what is left of the client's request header, true once it is written: its bytes
+     * are dropped from the client's buffer then and the body follows.
+     */
+    private boolean writeForwardedHeader(SelectionKey serverSlctKey, SocketChannelAtt clientAtt) {
+        try {
+            metrics.bytesToUpstream.add(clientAtt.forwarded.writeTo((SocketChannel) serverSlctKey.channel()));
+        } catch (IOException e) {
+            failResponse(serverSlctKey);
+            return false;
+        }
+
+        if (clientAtt.forwarded.hasRemaining())
+            return false;
+
+        // the body follows the header, then whatever is left is the next request
+        clientAtt.consumeRequest(clientAtt.httpRequest.hdrSize);
+        if (!clientAtt.relayRequestBody()) {
+            failResponse(serverSlctKey);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Once the 200 (or 101) and whatever either side sent meanwhile are relayed, a CONNECT pair
+     * switches to a tunnel with its own per-direction buffers.
+     */
+    private void startTunnel(SocketChannelAtt attachment, SocketChannelAtt counterpartAtt) {
+        SocketChannelAtt clientAtt = attachment.isClient() ? attachment : counterpartAtt;
+        SocketChannelAtt serverAtt = attachment.isClient() ? counterpartAtt : attachment;
+
+        if (clientAtt.state != SocketChannelAtt.State.CONNECT || serverAtt.state != SocketChannelAtt.State.CONNECT ||
+                serverAtt.connecting || !clientAtt.buffer.isEmpty() || !clientAtt.requestBuffer.isEmpty() || !serverAtt.buffer.isEmpty() ||
+                !clientAtt.selectionKey.isValid() || !serverAtt.selectionKey.isValid())
+            return;
+
+        clientAtt.release();
+        serverAtt.release();
+
+        Tunnel tunnel = new Tunnel(clientAtt.selectionKey, serverAtt.selectionKey, clientAtt.reactor.pool, metrics,
+                this::closeTunnel);
+        clientAtt.tunnel = tunnel;
+        serverAtt.tunnel = tunnel;
+        tunnel.start();
+    }
+
+    private void closeTunnel(Tunnel tunnel) {
+        SocketChannelAtt clientAtt = (SocketChannelAtt) tunnel.client().attachment();
+        AsyncLog.get().access(clientAtt.reactor.id, HttpRequest.CONNECT_TYPE, clientAtt.logHost, clientAtt.logHostLength,
+                200, tunnel.getBytesToClient(), System.nanoTime() - tunnel.getStartNanos());
+
+        closeSocketChannel(tunnel.client());
+        closeSocketChannel(tunnel.upstream());
+    }
+
+    // straight from the cache entry's buffer, only the Age line is written per client
+    private void writeCached(SelectionKey clientSlctKey, SocketChannelAtt clientAtt) {
+        SocketChannel socketChannel = (SocketChannel) clientSlctKey.channel();
+        ByteBuffer[] source = clientAtt.cacheSource;
+
+        try {
+            long written = socketChannel.write(source);
+            responseCache.recordServed(written);
+            metrics.bytesToClient.add(written);
+            clientAtt.transferred += written;
+        } catch (IOException e) {
+            closeSocketChannel(clientSlctKey);
+            return;
+        }
+
+        // written in order, an empty body only counts once the header is out
+        if (!source[0].hasRemaining() && !source[1].hasRemaining() && !source[2].hasRemaining()) {
+            long duration = System.nanoTime() - clientAtt.requestStartNanos;
+            metrics.requestDuration.record(clientAtt.reactor.stripe, duration);
+            AsyncLog.get().access(clientAtt.reactor.id, clientAtt.httpRequest.type, clientAtt.logHost, clientAtt.logHostLength, 200, clientAtt.cacheLength, duration);
+
+            // the entry may be evicted, its views are not held on to
+            source[0] = null;
+            source[2] = null;
+            clientAtt.cacheSource = null;
+            clientAtt.state = SocketChannelAtt.State.IDLE;
+            clientAtt.httpRequest.reset();
+
+            nextRequest(clientSlctKey, clientAtt);
+        }
+    }
+
+    // from the flight's copy of the response, as far as it is received
+    private void writeJoined(SelectionKey clientSlctKey, SocketChannelAtt clientAtt) {
+        InFlightTable.Flight flight = clientAtt.joined;
+
+        if (clientAtt.joinedOffset < flight.length()) {
+            try {
+                int written = ((SocketChannel) clientSlctKey.channel()).write(flight.view(clientAtt.joinedOffset));
+                clientAtt.joinedOffset += written;
+                metrics.bytesToClient.add(written);
+                clientAtt.transferred += written;
+            } catch (IOException e) {
+                closeSocketChannel(clientSlctKey);
+                return;
+            }
+        }
+
+        // the state first: once complete, the length is final
+        if (flight.state() == InFlightTable.COMPLETE && clientAtt.joinedOffset == flight.length())
+            finishJoined(clientSlctKey, clientAtt);
+    }
+
+    private void finishJoined(SelectionKey clientSlctKey, SocketChannelAtt clientAtt) {
+        InFlightTable.Flight flight = clientAtt.joined;
+
+        long duration = System.nanoTime() - clientAtt.requestStartNanos;
+        metrics.requestDuration.record(clientAtt.reactor.stripe, duration);
+        AsyncLog.get().access(clientAtt.reactor.id, clientAtt.httpRequest.type, clientAtt.logHost, clientAtt.logHostLength,
+                flight.statusCode(), flight.length(), duration);
+
+        clientAtt.joined = null;
+        clientAtt.state = SocketChannelAtt.State.IDLE;
+        clientAtt.httpRequest.reset();
+
+        nextRequest(clientSlctKey, clientAtt);
+    }
+
+    // false until the 100 Continue is written
+    private boolean writeInterim(SelectionKey clientSlctKey, SocketChannelAtt clientAtt) {
+        try {
+            metrics.bytesToClient.add(((SocketChannel) clientSlctKey.channel()).write(clientAtt.interim));
+        } catch (IOException e) {
+            closeSocketChannel(clientSlctKey);
+            return false;
+        }
+
+        if (clientAtt.interim.hasRemaining())
+            return false;
+
+        clientAtt.interim = null;
+        return true;
+    }
+
+    private void handleClientWrite(SelectionKey clientSlctKey, long bytesWritten) {
         SocketChannelAtt clientAtt = (SocketChannelAtt) clientSlctKey.attachment();
 
         SelectionKey counterpartSlctKey = clientAtt.getCounterpartSlctKey();
         SocketChannelAtt serverAtt = (SocketChannelAtt) counterpartSlctKey.attachment();
 
         serverAtt.updateBytesWritten(bytesWritten);
-        if (serverAtt.isWriteComplete()) {
-            System.out.println("Get write complete: " + serverAtt.bytesWritten);
+        if (clientAtt.state == SocketChannelAtt.State.HTTP && serverAtt.isWriteComplete()) {
+            long duration = System.nanoTime() - clientAtt.requestStartNanos;
+            metrics.requestDuration.record(clientAtt.reactor.stripe, duration);
+            AsyncLog.get().access(clientAtt.reactor.id, clientAtt.httpRequest.type, clientAtt.logHost, clientAtt.logHostLength,
+                    serverAtt.httpResponse.statusCode, serverAtt.bytesWritten, duration);
+
+            // without a length the client can only tell the end of the body by the close, and
+            // a response before the whole request body leaves the rest of it unread
+            if (serverAtt.httpResponse.isCloseDelimited() || !clientAtt.httpRequest.complete || clientAtt.isForwardingHeader()) {
+                closeSocketChannel(clientSlctKey);
+                return;
+            }
 
             clientAtt.state = SocketChannelAtt.State.IDLE;
+            clientAtt.httpRequest.reset();
+
+            // any client's next request to the same target can use this connection now
+            releaseUpstream(clientAtt);
 
-            serverAtt.reset();
+            nextRequest(clientSlctKey, clientAtt);
         }
     }
 
-    private boolean isTheSameTargetAddr(HttpRequest oldRequest, HttpRequest newRequest) {
-        return oldRequest != null &&
-                oldRequest.headerMap.get(HttpRequest.HOST).equals(newRequest.headerMap.get(HttpRequest.HOST)) &&
-                oldRequest.port == newRequest.port;
+    private SelectionKey borrowUpstream(Reactor reactor, HttpRequest httpRequest) {
+        if (httpRequest.type == HttpRequest.CONNECT_TYPE)
+            return null;
+
+        UpstreamPool.Entry entry = reactor.upstreams.checkout(httpRequest);
+        if (entry == null)
+            return null;
+
+        // its timer stopped while pooled, the request's arms it again
+        ((SocketChannelAtt) entry.selectionKey.attachment()).lastActive = reactor.now;
+
+        // its interest follows the request once it is paired with the client
+        return entry.selectionKey;
+    }
+
+    /**
+     * Hand the client's upstream back to the worker's pool if it can carry another request,
+     * otherwise close it.
+     */
+    private void releaseUpstream(SocketChannelAtt clientAtt) {
+        SelectionKey upstreamSlctKey = clientAtt.getCounterpartSlctKey();
+        if (upstreamSlctKey == null)
+            return;
+
+        clientAtt.setCounterpartSlctKey(null);
+
+        SocketChannelAtt upstreamAtt = (SocketChannelAtt) upstreamSlctKey.attachment();
+        upstreamAtt.setCounterpartSlctKey(null);
+
+        boolean reusable = upstreamAtt.isReusable();
+        upstreamAtt.reset();
+
+        // only a close or stray bytes can make a pooled connection readable
+        if (reusable && !draining && upstreamAtt.reactor.upstreams.checkin(upstreamAtt.poolEntry, System.currentTimeMillis())) {
+            upstreamSlctKey.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+
+        closeSocketChannel(upstreamSlctKey);
     }
 
-    private SelectionKey registerServerSocketChannel(HttpRequest httpRequest) {
-        InetSocketAddress addr = new InetSocketAddress(httpRequest.headerMap.get(HttpRequest.HOST), httpRequest.port);
-        SelectionKey selectionKey = null;
+    private SelectionKey registerServerSocketChannel(Reactor reactor, HttpRequest httpRequest) {
+        String host = httpRequest.host();
+        if (host == null)
+            return null;
 
+        // a cached answer connects right away, otherwise the lookup runs off the event loop
+        InetAddress[] addresses;
         try {
-            SocketChannel socketChannel = SocketChannel.open();
+            addresses = dnsCache.cached(host);
+        } catch (UnknownHostException e) {
+            return null;
+        }
 
-            // connect with timeout
-            try {
-                socketChannel.socket().connect(addr, 500);
-            } catch (SocketTimeoutException e) {
+        SelectionKey selectionKey;
+        SocketChannel socketChannel = null;
+
+        try {
+            socketChannel = SocketChannel.open();
+            socketChannel.configureBlocking(false);
+            configureSocket(socketChannel);
+
+            SocketChannelAtt attachment = new SocketChannelAtt(reactor, false);
+            if (attachment.getBuffer().writable(true) == null) {
+                // out of buffer memory
+                closeQuietly(socketChannel);
                 return null;
             }
-            // TODO: nonblocking connect with OP_CONNECT
 
-            socketChannel.configureBlocking(false);
-            selectionKey = socketChannel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-
-            SocketChannelAtt attachment = new SocketChannelAtt(false);
-            attachment.state = switch (httpRequest.type) {
-                case HttpRequest.GET_TYPE -> SocketChannelAtt.State.GET;
-                case HttpRequest.CONNECT_TYPE -> SocketChannelAtt.State.CONNECT;
-                default -> throw new IllegalStateException("Unexpected http request type:"  + httpRequest.type);
-            };
-
-            selectionKey.attach(attachment);
-        } catch (ClosedChannelException e) {
-            e.printStackTrace();
+            attachment.state = httpRequest.type == HttpRequest.CONNECT_TYPE ?
+                    SocketChannelAtt.State.CONNECT : SocketChannelAtt.State.HTTP;
+
+            // no interest until the connect is started
+            selectionKey = socketChannel.register(reactor.selector, 0, attachment);
+            attachment.selectionKey = selectionKey;
+            attachment.poolEntry = new UpstreamPool.Entry(reactor.upstreams.keyFor(httpRequest), selectionKey);
+            attachment.connecting = true;
+            attachment.lastActive = reactor.now;
+            reactor.connections.incrementAndGet();
+            metrics.upstreamConnections.increment();
         } catch (IOException e) {
-            e.printStackTrace();
+            AsyncLog.get().error("upstream socket failed", e);
+
+            if (socketChannel != null)
+                closeQuietly(socketChannel);
+
+            return null;
+        }
+
+        int port = httpRequest.port;
+        if (addresses != null) {
+            SocketChannelAtt attachment = (SocketChannelAtt) selectionKey.attachment();
+            if (!connectUpstream(selectionKey, addresses, port)) {
+                closeSocketChannel(attachment.selectionKey);
+                return null;
+            }
+
+            // another address may have won already, the upstream goes on with its channel
+            return attachment.selectionKey;
         }
 
+        // a lookup that does not answer in time fails the connect like an attempt would
+        SocketChannelAtt attachment = (SocketChannelAtt) selectionKey.attachment();
+        attachment.connectDeadline = System.currentTimeMillis() + RESOLVE_TIMEOUT_MILLIS;
+        armTimer(attachment);
+
+        SelectionKey upstreamSlctKey = selectionKey;
+        dnsCache.resolve(host, reactor, (resolved, error) -> onResolved(upstreamSlctKey, resolved, port));
+
         return selectionKey;
     }
 
-    private void closeSocketChannel(SocketChannel socketChannel) {
+    // runs on the upstream's reactor
+    private void onResolved(SelectionKey selectionKey, InetAddress[] addresses, int port) {
+        if (!selectionKey.isValid())
+            return;
+
+        SocketChannelAtt attachment = (SocketChannelAtt) selectionKey.attachment();
+        SelectionKey clientSlctKey = attachment.getCounterpartSlctKey();
+
+        // the client left while the name was being looked up
+        if (clientSlctKey == null || !clientSlctKey.isValid()) {
+            closeSocketChannel(selectionKey);
+            return;
+        }
+
+        if (addresses == null || !connectUpstream(selectionKey, addresses, port))
+            failConnect(attachment.selectionKey);
+    }
+
+    /**
+     * The connect attempts of an upstream over the addresses of its target, raced (Happy
+     * Eyeballs): the next address is tried once the attempts before it had
+     * CONNECT_ATTEMPT_DELAY_MILLIS, or right away when they failed; the first to connect wins
+     * and the others are closed. The first attempt runs on the upstream's own channel, the
+     * others on channels of their own, the upstream takes over the one that wins.
+     */
+    private final class ConnectRace {
+        final SocketChannelAtt upstream;
+        final InetSocketAddress[] targets;
+        final List<ConnectAttempt> attempts = new ArrayList<>(2);
+        final TimerWheel.Timer stagger = new TimerWheel.Timer(this::tryNextOrFail);
+        int next;
+
+        ConnectRace(SocketChannelAtt upstream, InetSocketAddress[] targets) {
+            this.upstream = upstream;
+            this.targets = targets;
+        }
+
+        boolean hasPending() {
+            for (ConnectAttempt attempt : attempts) {
+                if (!attempt.failed)
+                    return true;
+            }
+
+            return false;
+        }
+
+        private void tryNextOrFail() {
+            if (!tryNext(this))
+                failConnect(upstream.selectionKey);
+        }
+    }
+
+    // one attempt of a race; a channel of its own has the attempt attached until it wins
+    private static final class ConnectAttempt {
+        final ConnectRace race;
+        final SelectionKey selectionKey;
+        final InetSocketAddress target;
+        final long startNanos = System.nanoTime();
+        boolean failed;
+
+        ConnectAttempt(ConnectRace race, SelectionKey selectionKey, InetSocketAddress target) {
+            this.race = race;
+            this.selectionKey = selectionKey;
+            this.target = target;
+        }
+
+        boolean hasOwnChannel() {
+            return selectionKey.attachment() == this;
+        }
+    }
+
+    /**
+     * Race the addresses of the target, the ones that connected fastest lately first. Completed
+     * by handleConnect(), failed once every attempt failed or by the connection's timer. False
+     * if it failed right away.
+     */
+    private boolean connectUpstream(SelectionKey selectionKey, InetAddress[] addresses, int port) {
+        SocketChannelAtt attachment = (SocketChannelAtt) selectionKey.attachment();
+
+        attachment.connectStartNanos = System.nanoTime();
+        attachment.race = new ConnectRace(attachment, addressStats.order(addresses, port, System.currentTimeMillis()));
+
+        return tryNext(attachment.race);
+    }
+
+    /**
+     * Start attempts until one is in flight, false if the race is lost: every address failed.
+     * Also false if one connected right away but the upstream could not take it.
+     */
+    private boolean tryNext(ConnectRace race) {
+        SocketChannelAtt upstream = race.upstream;
+        Reactor reactor = upstream.reactor;
+        reactor.timers.cancel(race.stagger);
+
+        while (race.next < race.targets.length) {
+            InetSocketAddress target = race.targets[race.next++];
+            addressStats.started();
+
+            SocketChannel socketChannel = null;
+            ConnectAttempt attempt;
+            try {
+                if (race.attempts.isEmpty()) {
+                    attempt = new ConnectAttempt(race, upstream.selectionKey, target);
+                } else {
+                    socketChannel = SocketChannel.open();
+                    socketChannel.configureBlocking(false);
+                    configureSocket(socketChannel);
+                    attempt = new ConnectAttempt(race, socketChannel.register(reactor.selector, 0), target);
+                    attempt.selectionKey.attach(attempt);
+                }
+            } catch (IOException e) {
+                AsyncLog.get().error("upstream socket failed", e);
+                if (socketChannel != null)
+                    closeQuietly(socketChannel);
+                return race.hasPending();
+            }
+            race.attempts.add(attempt);
+
+            boolean connected;
+            try {
+                connected = ((SocketChannel) attempt.selectionKey.channel()).connect(target);
+            } catch (IOException e) {
+                if (AsyncLog.DEBUG) AsyncLog.get().message(AsyncLog.DEBUG_LEVEL, "upstream connect failed, attempt", race.next);
+                attemptFailed(attempt);
+                continue;
+            }
+
+            if (connected)
+                return win(race, attempt);
+
+            attempt.selectionKey.interestOps(SelectionKey.OP_CONNECT);
+            upstream.connectDeadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+            armTimer(upstream);
+
+            if (race.next < race.targets.length)
+                reactor.timers.schedule(race.stagger, System.currentTimeMillis() + CONNECT_ATTEMPT_DELAY_MILLIS);
+
+            return true;
+        }
+
+        return race.hasPending();
+    }
+
+    private void attemptFailed(ConnectAttempt attempt) {
+        attempt.failed = true;
+        addressStats.failed(attempt.target, System.currentTimeMillis());
+
+        // the upstream's own channel stays until the race is over
+        if (attempt.hasOwnChannel()) {
+            closeQuietly((SocketChannel) attempt.selectionKey.channel());
+        } else if (attempt.selectionKey.isValid()) {
+            attempt.selectionKey.interestOps(0);
+        }
+    }
+
+    /**
+     * The attempt connected: the others are closed and the upstream goes on with its channel.
+     */
+    private boolean win(ConnectRace race, ConnectAttempt winner) {
+        SocketChannelAtt upstream = race.upstream;
+        upstream.race = null;
+        upstream.reactor.timers.cancel(race.stagger);
+
+        addressStats.connected(winner.target, System.nanoTime() - winner.startNanos, winner != race.attempts.get(0));
+
+        for (ConnectAttempt attempt : race.attempts) {
+            if (attempt != winner && attempt.hasOwnChannel())
+                closeQuietly((SocketChannel) attempt.selectionKey.channel());
+        }
+
+        if (winner.hasOwnChannel()) {
+            // the upstream's own channel lost, the client and the pool are pointed at the winner
+            SelectionKey own = upstream.selectionKey;
+            own.attach(null);
+            closeQuietly((SocketChannel) own.channel());
+
+            SelectionKey selectionKey = winner.selectionKey;
+            selectionKey.attach(upstream);
+            upstream.selectionKey = selectionKey;
+            upstream.poolEntry = new UpstreamPool.Entry(upstream.poolEntry.key, selectionKey);
+
+            SelectionKey clientSlctKey = upstream.getCounterpartSlctKey();
+            if (clientSlctKey != null)
+                ((SocketChannelAtt) clientSlctKey.attachment()).setCounterpartSlctKey(selectionKey);
+        }
+
+        return onConnected(upstream.selectionKey);
+    }
+
+    private void handleConnect(SelectionKey selectionKey) {
+        ConnectAttempt attempt;
+        if (selectionKey.attachment() instanceof ConnectAttempt own) {
+            attempt = own;
+        } else if (selectionKey.attachment() instanceof SocketChannelAtt attachment && attachment.race != null) {
+            attempt = attachment.race.attempts.get(0);
+        } else {
+            return;
+        }
+
+        try {
+            if (!((SocketChannel) selectionKey.channel()).finishConnect())
+                return;
+        } catch (IOException e) {
+            // refused or unreachable, the next address is tried right away
+            attemptFailed(attempt);
+            attempt.race.tryNextOrFail();
+            return;
+        }
+
+        if (!win(attempt.race, attempt))
+            failConnect(attempt.race.upstream.selectionKey);
+    }
+
+    private boolean onConnected(SelectionKey selectionKey) {
+        SocketChannelAtt attachment = (SocketChannelAtt) selectionKey.attachment();
+
+        attachment.connecting = false;
+        metrics.connectLatency.record(attachment.reactor.stripe, System.nanoTime() - attachment.connectStartNanos);
+
+        // the client's request has been waiting in its buffer, a tunnel still needs its 200
+        if (attachment.state == SocketChannelAtt.State.CONNECT && !attachment.getBuffer().put(CONNECT_SUCCESS_RESPONSE))
+            return false;
+
+        updateInterest(attachment);
+        return true;
+    }
+
+    /**
+     * Interest follows the buffers of a pair: a side is written only while something is
+     * pending for it and read only while its buffer has room, so an idle or stalled connection
+     * is never selected. Called for the key just handled, its counterpart is updated with it.
+     */
+    private void updateInterest(SocketChannelAtt attachment) {
+        if (attachment == null)
+            return;
+
+        setInterest(attachment);
+
+        SelectionKey counterpartSlctKey = attachment.getCounterpartSlctKey();
+        if (counterpartSlctKey != null)
+            setInterest((SocketChannelAtt) counterpartSlctKey.attachment());
+    }
+
+    private void setInterest(SocketChannelAtt attachment) {
+        SelectionKey selectionKey = attachment.selectionKey;
+
+        // a connect in flight waits for OP_CONNECT, a tunnel manages its own
+        if (selectionKey == null || !selectionKey.isValid() || attachment.connecting || attachment.tunnel != null)
+            return;
+
+        int ops = 0;
+        if (attachment.canRead())
+            ops |= SelectionKey.OP_READ;
+        if (attachment.hasPendingWrite())
+            ops |= SelectionKey.OP_WRITE;
+
+        if (selectionKey.interestOps() != ops)
+            selectionKey.interestOps(ops);
+    }
+
+    /**
+     * Schedule the connection's timer for its deadline, unless it already runs earlier: it
+     * only ever has to move forward once it runs.
+     */
+    private void armTimer(SocketChannelAtt attachment) {
+        long deadline = attachment.deadline();
+        TimerWheel.Timer timer = attachment.timer;
+
+        if (deadline != Long.MAX_VALUE && (!timer.isScheduled() || deadline < timer.deadline()))
+            attachment.reactor.timers.schedule(timer, deadline);
+    }
+
+    /**
+     * A connection's timer ran: close it if its deadline has passed, otherwise wait for the
+     * deadline it has now. A pair is closed together, a tunnel logs its access on the way.
+     */
+    private void onTimeout(SocketChannelAtt attachment) {
+        SelectionKey selectionKey = attachment.selectionKey;
+        if (selectionKey == null || !selectionKey.channel().isOpen())
+            return;
+
+        long deadline = attachment.deadline();
+        if (deadline > System.currentTimeMillis()) {
+            if (deadline != Long.MAX_VALUE)
+                attachment.reactor.timers.schedule(attachment.timer, deadline);
+            return;
+        }
+
+        metrics.timeouts.increment();
+        if (AsyncLog.DEBUG) AsyncLog.get().message(AsyncLog.DEBUG_LEVEL, "connection timed out, state", attachment.state.ordinal());
+
+        if (attachment.connecting) {
+            failConnect(selectionKey);
+        } else if (attachment.tunnel != null) {
+            attachment.tunnel.close();
+        } else if (!attachment.isClient()) {
+            failResponse(selectionKey);
+        } else if (attachment.getCounterpartSlctKey() != null) {
+            failResponse(attachment.getCounterpartSlctKey());
+        } else {
+            closeSocketChannel(selectionKey);
+        }
+    }
+
+    /**
+     * Charge what a client moved since the last time to its byte rate. Over the rate it is
+     * paused, neither read nor written until its timer runs; a tunnel pauses its client side.
+     */
+    private void chargeBytes(SocketChannelAtt clientAtt) {
+        AdmissionControl.Client admitted = clientAtt.admitted;
+        if (admitted == null || clientAtt.throttled)
+            return;
+
+        long transferred = clientAtt.transferred();
+        if (transferred == clientAtt.charged)
+            return;
+
+        Reactor reactor = clientAtt.reactor;
+        long wait = admitted.takeBytes(transferred - clientAtt.charged, reactor.now);
+        clientAtt.charged = transferred;
+        if (wait <= 0)
+            return;
+
+        clientAtt.throttled = true;
+        if (clientAtt.throttle == null)
+            clientAtt.throttle = new TimerWheel.Timer(() -> endThrottle(clientAtt));
+        reactor.timers.schedule(clientAtt.throttle, reactor.now + wait);
+
+        if (clientAtt.tunnel != null)
+            clientAtt.tunnel.pauseClient(true);
+    }
+
+    private void endThrottle(SocketChannelAtt clientAtt) {
+        clientAtt.throttled = false;
+        if (!clientAtt.selectionKey.isValid())
+            return;
+
+        if (clientAtt.tunnel != null) {
+            clientAtt.tunnel.pauseClient(false);
+        } else {
+            updateInterest(clientAtt);
+        }
+    }
+
+    private void failConnect(SelectionKey selectionKey) {
+        SocketChannelAtt attachment = (SocketChannelAtt) selectionKey.attachment();
+        attachment.connecting = false;
+
+        // the attempts still in flight did not answer in time
+        if (attachment.race != null) {
+            for (ConnectAttempt attempt : attachment.race.attempts) {
+                if (!attempt.failed)
+                    addressStats.failed(attempt.target, System.currentTimeMillis());
+            }
+        }
+
+        SelectionKey clientSlctKey = attachment.getCounterpartSlctKey();
+        if (clientSlctKey != null)
+            closeSocketChannel(clientSlctKey);
+
+        closeSocketChannel(selectionKey);
+    }
+
+    private void closeSocketChannel(SelectionKey selectionKey) {
+        SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
+        if (!socketChannel.isOpen())
+            return;
+
+        closeQuietly(socketChannel);
+
+        SocketChannelAtt attachment = (SocketChannelAtt) selectionKey.attachment();
+        if (attachment == null)
+            return;
+
+        if (attachment.tunnel != null)
+            attachment.tunnel.close();
+
+        attachment.reactor.timers.cancel(attachment.timer);
+        if (attachment.race != null) {
+            attachment.reactor.timers.cancel(attachment.race.stagger);
+            for (ConnectAttempt attempt : attachment.race.attempts) {
+                if (attempt.hasOwnChannel())
+                    closeQuietly((SocketChannel) attempt.selectionKey.channel());
+            }
+            attachment.race = null;
+        }
+        if (attachment.throttle != null)
+            attachment.reactor.timers.cancel(attachment.throttle);
+        if (attachment.admitted != null) {
+            attachment.admitted.release();
+            attachment.admitted = null;
+        }
+
+        // the clients waiting for its response go elsewhere
+        if (attachment.flight != null) {
+            attachment.flight.fail();
+            attachment.flight = null;
+        }
+
+        attachment.reactor.connections.decrementAndGet();
+        if (attachment.isClient()) {
+            metrics.clientConnections.decrement();
+        } else {
+            metrics.upstreamConnections.decrement();
+        }
+
+        // while the other side is open it may still drain what this side read, the last one
+        // to close gives both buffers back to the pool
+        SelectionKey counterpartSlctKey = attachment.getCounterpartSlctKey();
+        if (counterpartSlctKey == null || !counterpartSlctKey.channel().isOpen()) {
+            attachment.release();
+
+            if (counterpartSlctKey != null)
+                ((SocketChannelAtt) counterpartSlctKey.attachment()).release();
+        }
+    }
+
+
+    private void closeQuietly(SocketChannel socketChannel) {
         try {
             socketChannel.close();
         } catch (IOException exception) {
-            exception.printStackTrace();
+            AsyncLog.get().error("close failed", exception);
         }
     }
 }
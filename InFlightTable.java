@@ -0,0 +1,260 @@
+package com.ming;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * GETs on their way to the upstream, shared by all workers and keyed like the response cache.
+ * The first request for a key goes upstream, the ones arriving meanwhile wait for its response
+ * instead of fetching it again. Once the header shows the response may be shared, its bytes are
+ * copied aside as they are relayed to the first client and written to the others from there: a
+ * client joining late gets what was received so far, then the rest as it comes in.
+ *
+ * Only the leader's reactor writes a flight, the waiters read it from their own reactors: the
+ * published length is volatile and written after the bytes, so a reader never sees more than
+ * what is copied.
+ */
+class InFlightTable {
+
+    /**
+     * Flight states
+     */
+    static final int PENDING = 0;
+    static final int SHARED = 1;
+    static final int COMPLETE = 2;
+
+    // the response may not be shared, the waiters go to the upstream themselves
+    static final int ABANDONED = 3;
+
+    // the upstream failed after bytes were shared, the waiters cannot be answered
+    static final int FAILED = 4;
+
+    private static final int INITIAL_SIZE = 16 * 1024;
+
+    /**
+     * A waiting client, woken up on its own reactor whenever its flight moves on. At most one
+     * wakeup is queued at a time, however many reads the leader makes meanwhile.
+     */
+    static final class Waiter {
+        private final Executor executor;
+        private final Runnable task;
+        private final AtomicBoolean queued = new AtomicBoolean();
+
+        Waiter(Executor executor, Runnable task) {
+            this.executor = executor;
+            this.task = task;
+        }
+
+        void wake() {
+            if (queued.compareAndSet(false, true))
+                executor.execute(this::run);
+        }
+
+        private void run() {
+            queued.set(false);
+            task.run();
+        }
+    }
+
+    final class Flight {
+        final String key;
+
+        // guarded by this
+        private final List<Waiter> waiters = new ArrayList<>(4);
+
+        private volatile int state = PENDING;
+        private volatile ByteBuffer data;
+        private volatile int length;
+        private int statusCode;
+
+        private Flight(String key) {
+            this.key = key;
+        }
+
+        int state() {
+            return state;
+        }
+
+        int statusCode() {
+            return statusCode;
+        }
+
+        int length() {
+            return length;
+        }
+
+        /**
+         * The bytes from offset up to what is received so far, a view per write.
+         */
+        ByteBuffer view(int offset) {
+            int end = length;
+            return data.duplicate().limit(end).position(offset);
+        }
+
+        /**
+         * Wait for the response, false if it is too late to join.
+         */
+        private boolean join(Waiter waiter) {
+            synchronized (this) {
+                if (state != PENDING && state != SHARED)
+                    return false;
+
+                waiters.add(waiter);
+            }
+
+            // a late joiner starts with what was received so far
+            if (state != PENDING)
+                waiter.wake();
+
+            return true;
+        }
+
+        /**
+         * The response header is parsed: its bytes are shared from now on if it is a complete,
+         * public 200 small enough, otherwise the waiters are sent on their way.
+         */
+        void start(HttpResponse response) {
+            int initialSize;
+            if (response.statusCode != 200 || response.noStore || response.hasSetCookie || response.hasVary) {
+                initialSize = -1;
+            } else if (response.bodyType == HttpBase.BODY_LENGTH) {
+                long size = response.hdrSize + response.contentLen;
+                initialSize = size > maxBytes ? -1 : (int) size;
+            } else if (response.bodyType == HttpBase.BODY_CHUNKED) {
+                initialSize = Math.min(INITIAL_SIZE, maxBytes);
+            } else {
+                // close-delimited: the waiters' connections are kept alive
+                initialSize = -1;
+            }
+
+            if (initialSize < 0) {
+                finish(ABANDONED);
+                return;
+            }
+
+            statusCode = response.statusCode;
+            data = ByteBuffer.allocateDirect(initialSize);
+            state = SHARED;
+            wakeWaiters();
+        }
+
+        /**
+         * Copy buffer[from, to) and publish it. A chunked response outgrowing the maximum fails
+         * the flight.
+         */
+        void append(BufferChain buffer, int from, int to) {
+            if (state != SHARED)
+                return;
+
+            int n = to - from;
+            ByteBuffer target = data;
+
+            if (target.remaining() < n) {
+                long needed = (long) target.position() + n;
+                if (needed > maxBytes) {
+                    finish(FAILED);
+                    return;
+                }
+
+                int capacity = (int) Math.min(maxBytes, Math.max(needed, 2L * target.capacity()));
+                ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+                grown.put(target.duplicate().flip());
+                target = grown;
+                data = grown;
+            }
+
+            buffer.copyTo(from, target, n);
+            length += n;
+            wakeWaiters();
+        }
+
+        void complete() {
+            finish(COMPLETE);
+        }
+
+        /**
+         * The upstream is gone: waiters still waiting for the header go upstream themselves,
+         * the ones served part of the response already cannot be.
+         */
+        void fail() {
+            finish(state == PENDING ? ABANDONED : FAILED);
+        }
+
+        private void finish(int finalState) {
+            synchronized (this) {
+                if (state != PENDING && state != SHARED)
+                    return;
+
+                state = finalState;
+            }
+
+            flights.remove(key, this);
+            if (finalState == COMPLETE)
+                coalesced.addAndGet(waiters.size());
+            if (finalState == ABANDONED)
+                abandoned.incrementAndGet();
+
+            wakeWaiters();
+        }
+
+        private synchronized void wakeWaiters() {
+            for (Waiter waiter : waiters)
+                waiter.wake();
+        }
+    }
+
+    private final int maxBytes;
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+
+    /**
+     * maxBytes caps the response copied aside per flight.
+     */
+    InFlightTable(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Wait for the flight in progress for key, or null if there is none to join.
+     */
+    Flight join(String key, Waiter waiter) {
+        Flight flight = flights.get(key);
+
+        return flight != null && flight.join(waiter) ? flight : null;
+    }
+
+    /**
+     * A new flight the caller fetches for, or null if another request for key went upstream
+     * in the meantime.
+     */
+    Flight lead(String key) {
+        Flight flight = new Flight(key);
+
+        return flights.putIfAbsent(key, flight) == null ? flight : null;
+    }
+
+    int size() {
+        return flights.size();
+    }
+
+    /**
+     * Requests answered with another request's response.
+     */
+    long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Flights whose response could not be shared.
+     */
+    long getAbandoned() {
+        return abandoned.get();
+    }
+}
@@ -0,0 +1,284 @@
+package com.ming;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load without the internet: a local origin, the proxy, and keep-alive clients
+ * driving GETs through it, plain or inside CONNECT tunnels. Every engine given is run in turn
+ * against the same origin and the results are printed side by side.
+ *
+ * Run with: java com.ming.LoadTest [key=value ...]
+ *   engines=nio,virtual  workers=4  clients=200  tunnels=20  duration=10  warmup=2
+ *   size=4096  chunked=false  delay=0  cacheable=false
+ */
+class LoadTest {
+
+    private static final int PROXY_PORT = 18080;
+
+    private final Map<String, String> options;
+
+    private final int clients;
+    private final int tunnels;
+    private final int durationSeconds;
+    private final int warmupSeconds;
+    private final int workers;
+
+    record Result(String engine, long requests, long bytes, double seconds, long errors, LatencyHistogram latency) {
+    }
+
+    LoadTest(Map<String, String> options) {
+        this.options = options;
+        this.clients = intOption("clients", 200);
+        this.tunnels = intOption("tunnels", 20);
+        this.durationSeconds = intOption("duration", 10);
+        this.warmupSeconds = intOption("warmup", 2);
+        this.workers = intOption("workers", Runtime.getRuntime().availableProcessors());
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0)
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        new LoadTest(options).run();
+    }
+
+    private void run() throws Exception {
+        HttpServer origin = startOrigin(intOption("size", 4096), Boolean.parseBoolean(options.getOrDefault("chunked", "false")),
+                intOption("delay", 0), Boolean.parseBoolean(options.getOrDefault("cacheable", "false")));
+        int originPort = origin.getAddress().getPort();
+
+        List<Result> results = new ArrayList<>();
+        String[] engines = options.getOrDefault("engines", "nio,virtual").split(",");
+        for (int i = 0; i < engines.length; i++) {
+            // a fresh port per engine, the previous server keeps running until the end
+            int proxyPort = PROXY_PORT + i;
+            ProxyServer server = ProxyServer.create(engines[i], proxyPort, workers);
+            Thread thread = new Thread(server::runServer, "proxy-" + engines[i]);
+            thread.setDaemon(true);
+            thread.start();
+            Thread.sleep(300);
+
+            results.add(drive(engines[i], proxyPort, originPort));
+        }
+
+        System.out.printf("%n%-10s %10s %12s %8s %10s %10s %10s %10s%n",
+                "engine", "req/s", "MB/s", "errors", "p50 us", "p99 us", "p999 us", "max us");
+        for (Result result : results) {
+            LatencyHistogram latency = result.latency();
+            System.out.printf("%-10s %10.0f %12.2f %8d %10.1f %10.1f %10.1f %10.1f%n",
+                    result.engine(),
+                    result.requests() / result.seconds(),
+                    result.bytes() / result.seconds() / (1 << 20),
+                    result.errors(),
+                    latency.percentile(50) / 1000.0,
+                    latency.percentile(99) / 1000.0,
+                    latency.percentile(99.9) / 1000.0,
+                    latency.max() / 1000.0);
+        }
+
+        origin.stop(0);
+        System.exit(0);
+    }
+
+    /**
+     * Origin serving size bytes per request after delay milliseconds, with a Content-Length
+     * or chunked. Responses are not cacheable unless asked, so every request reaches it.
+     */
+    static HttpServer startOrigin(int size, boolean chunked, int delay, boolean cacheable) throws IOException {
+        byte[] body = new byte[size];
+        Arrays.fill(body, (byte) 'x');
+
+        // header and body go out in separate writes, without this Nagle holds the body back
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        HttpServer origin = HttpServer.create(new InetSocketAddress("localhost", 0), 4096);
+        origin.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        origin.createContext("/", exchange -> {
+            try (exchange) {
+                if (delay > 0)
+                    Thread.sleep(delay);
+
+                exchange.getResponseHeaders().add(HttpResponse.CACHE_CONTROL, cacheable ? "max-age=60" : "no-store");
+                exchange.sendResponseHeaders(200, chunked ? 0 : body.length);
+                exchange.getResponseBody().write(body);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        origin.start();
+
+        return origin;
+    }
+
+    private Result drive(String engine, int proxyPort, int originPort) throws InterruptedException {
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong requests = new AtomicLong();
+        AtomicLong bytes = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+
+        long start = System.nanoTime();
+        long measureFrom = start + warmupSeconds * 1_000_000_000L;
+        long end = measureFrom + durationSeconds * 1_000_000_000L;
+
+        System.out.printf("%s: %d keep-alive clients, %d tunnels, %ds after %ds warmup%n",
+                engine, clients, tunnels, durationSeconds, warmupSeconds);
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < clients + tunnels; i++) {
+                boolean tunnel = i >= clients;
+                int id = i;
+                executor.execute(() -> {
+                    while (System.nanoTime() < end) {
+                        try {
+                            client(id, tunnel, proxyPort, originPort, measureFrom, end, latency, requests, bytes);
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                });
+            }
+        }
+
+        return new Result(engine, requests.get(), bytes.get(), durationSeconds, errors.get(), latency);
+    }
+
+    // one connection, requests back to back until the end or an error
+    private static void client(int id, boolean tunnel, int proxyPort, int originPort, long measureFrom, long end,
+                               LatencyHistogram latency, AtomicLong requests, AtomicLong bytes) throws IOException {
+        try (Socket socket = new Socket("localhost", proxyPort)) {
+            socket.setSoTimeout(10_000);
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+
+            String target = "localhost:" + originPort;
+            if (tunnel) {
+                out.write(("CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                readHeader(in);
+            }
+
+            // inside a tunnel the origin is asked directly, origin-form
+            String prefix = tunnel ? "" : "http://" + target;
+            byte[] request = ("GET " + prefix + "/load/" + id + " HTTP/1.1\r\nHost: " + target +
+                    "\r\nAccept: */*\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+            while (true) {
+                long start = System.nanoTime();
+                if (start >= end)
+                    return;
+
+                out.write(request);
+                long received = readResponse(in);
+                long now = System.nanoTime();
+
+                if (start >= measureFrom && now <= end) {
+                    latency.record(now - start);
+                    requests.incrementAndGet();
+                    bytes.addAndGet(received);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read one response, returns its size.
+     */
+    static long readResponse(InputStream in) throws IOException {
+        String header = readHeader(in);
+        long size = header.length();
+
+        String lower = header.toLowerCase();
+        if (lower.contains("transfer-encoding: chunked")) {
+            while (true) {
+                String line = readLine(in);
+                size += line.length() + 2;
+
+                int semicolon = line.indexOf(';');
+                long chunk = Long.parseLong((semicolon < 0 ? line : line.substring(0, semicolon)).trim(), 16);
+                if (chunk == 0) {
+                    // trailers end with an empty line
+                    while (!(line = readLine(in)).isEmpty())
+                        size += line.length() + 2;
+
+                    return size + 2;
+                }
+
+                skip(in, chunk + 2);
+                size += chunk + 2;
+            }
+        }
+
+        int index = lower.indexOf("content-length:");
+        if (index < 0)
+            throw new IOException("No length: " + header);
+
+        long length = Long.parseLong(lower.substring(index + 15, lower.indexOf('\r', index)).trim());
+        skip(in, length);
+
+        return size + length;
+    }
+
+    static String readHeader(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder(256);
+
+        String line;
+        while (!(line = readLine(in)).isEmpty())
+            sb.append(line).append("\r\n");
+
+        return sb.append("\r\n").toString();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0)
+                throw new IOException("Connection closed");
+            if (b != '\r')
+                sb.append((char) b);
+        }
+
+        return sb.toString();
+    }
+
+    private static void skip(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0)
+                    throw new IOException("Connection closed");
+                skipped = 1;
+            }
+
+            n -= skipped;
+        }
+    }
+
+    private int intOption(String key, int defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+}
@@ -0,0 +1,243 @@
+package com.ming;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and histograms of a proxy engine, rendered in the Prometheus text format on
+ * a local admin endpoint. Recording never allocates or locks: counters are LongAdders and
+ * every histogram has one stripe per reactor, summed up when scraped.
+ */
+class Metrics {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private abstract static class Metric {
+        final String name;
+        final String help;
+
+        Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        abstract void render(StringBuilder sb);
+
+        void header(StringBuilder sb, String type) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+    }
+
+    /**
+     * Only ever up, e.g. bytes relayed; one read from a supplier is a total kept elsewhere.
+     */
+    static final class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+        private final LongSupplier supplier;
+
+        Counter(String name, String help) {
+            this(name, help, null);
+        }
+
+        Counter(String name, String help, LongSupplier supplier) {
+            super(name, help);
+            this.supplier = supplier;
+        }
+
+        void increment() {
+            value.increment();
+        }
+
+        void add(long n) {
+            value.add(n);
+        }
+
+        long get() {
+            return supplier != null ? supplier.getAsLong() : value.sum();
+        }
+
+        @Override
+        void render(StringBuilder sb) {
+            header(sb, "counter");
+            sb.append(name).append(' ').append(get()).append('\n');
+        }
+    }
+
+    /**
+     * Up and down, e.g. open connections.
+     */
+    static final class Gauge extends Metric {
+        private final LongAdder value = new LongAdder();
+        private final LongSupplier supplier;
+
+        Gauge(String name, String help, LongSupplier supplier) {
+            super(name, help);
+            this.supplier = supplier;
+        }
+
+        void increment() {
+            value.increment();
+        }
+
+        void decrement() {
+            value.decrement();
+        }
+
+        long get() {
+            return supplier != null ? supplier.getAsLong() : value.sum();
+        }
+
+        @Override
+        void render(StringBuilder sb) {
+            header(sb, "gauge");
+            sb.append(name).append(' ').append(get()).append('\n');
+        }
+    }
+
+    /**
+     * Reported as a summary with quantiles, values recorded in nanoseconds are exported in
+     * seconds.
+     */
+    static final class Histogram extends Metric {
+        private final LatencyHistogram[] stripes;
+        private final double scale;
+
+        Histogram(String name, String help, int stripes, boolean nanos) {
+            super(name, help);
+            this.stripes = new LatencyHistogram[stripes];
+            for (int i = 0; i < stripes; i++)
+                this.stripes[i] = new LatencyHistogram();
+            this.scale = nanos ? 1e-9 : 1;
+        }
+
+        /**
+         * stripe is the recording reactor's, out of range values share the last one.
+         */
+        void record(int stripe, long value) {
+            stripes[Math.min(Math.max(stripe, 0), stripes.length - 1)].record(value);
+        }
+
+        LatencyHistogram snapshot() {
+            LatencyHistogram total = new LatencyHistogram();
+            for (LatencyHistogram stripe : stripes)
+                total.add(stripe);
+
+            return total;
+        }
+
+        @Override
+        void render(StringBuilder sb) {
+            LatencyHistogram total = snapshot();
+
+            header(sb, "summary");
+            for (double quantile : QUANTILES) {
+                sb.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(total.percentile(quantile * 100) * scale).append('\n');
+            }
+            sb.append(name).append("_sum ").append(total.sum() * scale).append('\n');
+            sb.append(name).append("_count ").append(total.count()).append('\n');
+        }
+    }
+
+    // gauges may be added while the admin endpoint renders
+    private final List<Metric> metrics = new CopyOnWriteArrayList<>();
+    private final int stripes;
+
+    final Counter accepts;
+    final Gauge clientConnections;
+    final Gauge upstreamConnections;
+    final Counter bytesToUpstream;
+    final Counter bytesToClient;
+    final Counter timeouts;
+    final Histogram connectLatency;
+    final Histogram timeToFirstByte;
+    final Histogram requestDuration;
+    final Histogram loopTime;
+    final Histogram keysPerSelect;
+
+    /**
+     * stripes is the number of threads recording into the histograms, one per reactor.
+     */
+    Metrics(int stripes) {
+        this.stripes = stripes;
+
+        accepts = add(new Counter("proxy_accepts_total", "Client connections accepted."));
+        clientConnections = add(new Gauge("proxy_client_connections", "Open client connections.", null));
+        upstreamConnections = add(new Gauge("proxy_upstream_connections", "Open upstream connections, pooled ones included.", null));
+        bytesToUpstream = add(new Counter("proxy_upstream_bytes_sent_total", "Bytes relayed from clients to upstreams."));
+        bytesToClient = add(new Counter("proxy_client_bytes_sent_total", "Bytes relayed and served from the cache to clients."));
+        timeouts = add(new Counter("proxy_timeouts_total", "Connections closed by an idle, header, connect or request timeout."));
+        connectLatency = add(new Histogram("proxy_upstream_connect_seconds", "Upstream TCP connect time.", stripes, true));
+        timeToFirstByte = add(new Histogram("proxy_time_to_first_byte_seconds", "Request forwarded to first response byte from the upstream.", stripes, true));
+        requestDuration = add(new Histogram("proxy_request_duration_seconds", "Request parsed to response fully written to the client.", stripes, true));
+        loopTime = add(new Histogram("proxy_event_loop_iteration_seconds", "Time spent handling the keys and tasks of one select().", stripes, true));
+        keysPerSelect = add(new Histogram("proxy_event_loop_selected_keys", "Keys selected per select().", stripes, false));
+    }
+
+    <T extends Metric> T add(T metric) {
+        metrics.add(metric);
+        return metric;
+    }
+
+    /**
+     * An extra gauge read when scraped, e.g. from a pool's statistics.
+     */
+    void gauge(String name, String help, LongSupplier supplier) {
+        add(new Gauge(name, help, supplier));
+    }
+
+    /**
+     * An extra counter read when scraped, a total that only grows such as a pool's hits.
+     * Its name ends in _total.
+     */
+    void counter(String name, String help, LongSupplier supplier) {
+        add(new Counter(name, help, supplier));
+    }
+
+    int stripes() {
+        return stripes;
+    }
+
+    String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Metric metric : metrics)
+            metric.render(sb);
+
+        return sb.toString();
+    }
+
+    /**
+     * Serve GET /metrics on localhost:port.
+     */
+    HttpServer startAdmin(int port) throws IOException {
+        HttpServer admin = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+
+        // scrapes run on the server's own dispatcher thread, never on a reactor
+        admin.createContext("/metrics", exchange -> {
+            try (exchange) {
+                byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add(HttpResponse.CONTENT_TYPE, CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, body.length);
+
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+
+        admin.start();
+
+        return admin;
+    }
+}
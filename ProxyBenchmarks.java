@@ -0,0 +1,242 @@
+package com.ming;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * The hot paths of a proxied request, as a baseline to compare releases with: request header
+ * parsing across sizes and in TCP-sized reads, response header and body framing, the
+ * forwarded GET and relaying through a buffer chain.
+ * Run with: java com.ming.ProxyBenchmarks [label [results.csv]]
+ */
+class ProxyBenchmarks {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 5;
+    private static final int OPS_PER_ROUND = 100_000;
+
+    private static final int RELAY_SIZE = 16 * 1024;
+
+    static final String SMALL_REQUEST =
+            "GET / HTTP/1.1\r\n" +
+            "Host: example.com\r\n" +
+            "Accept: */*\r\n" +
+            "\r\n";
+
+    static final String RESPONSE_HEADER =
+            "HTTP/1.1 200 OK\r\n" +
+            "Date: Tue, 14 Oct 2025 08:12:31 GMT\r\n" +
+            "Server: nginx/1.24.0\r\n" +
+            "Content-Type: application/javascript; charset=utf-8\r\n" +
+            "Content-Length: 1024\r\n" +
+            "Cache-Control: public, max-age=3600\r\n" +
+            "ETag: \"5f2a-63c1b2d4e8f00\"\r\n" +
+            "Last-Modified: Mon, 13 Oct 2025 22:01:12 GMT\r\n" +
+            "Accept-Ranges: bytes\r\n" +
+            "Connection: keep-alive\r\n" +
+            "\r\n";
+
+    /**
+     * A typical browser request padded with count extra headers and a cookie of cookieSize bytes.
+     */
+    static String request(int count, int cookieSize) {
+        StringBuilder sb = new StringBuilder(HttpParserBenchmark.REQUEST);
+        sb.setLength(sb.length() - 2);
+
+        for (int i = 0; i < count; i++)
+            sb.append("X-Custom-Header-").append(i).append(": value-").append(i).append("-abcdefghij\r\n");
+        if (cookieSize > 0)
+            sb.append("Cookie: ").append("c".repeat(cookieSize)).append("\r\n");
+
+        return sb.append("\r\n").toString();
+    }
+
+    static String chunkedResponse(int bodySize, int chunkSize) {
+        StringBuilder sb = new StringBuilder("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n");
+        for (int left = bodySize; left > 0; left -= chunkSize) {
+            int n = Math.min(left, chunkSize);
+            sb.append(Integer.toHexString(n)).append("\r\n").append("x".repeat(n)).append("\r\n");
+        }
+
+        return sb.append("0\r\n\r\n").toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkRunner runner = new BenchmarkRunner(WARMUP_ROUNDS, ROUNDS, OPS_PER_ROUND);
+
+        parseRequest(runner, "parse request small", SMALL_REQUEST);
+        parseRequest(runner, "parse request typical", HttpParserBenchmark.REQUEST);
+        parseRequest(runner, "parse request 40 headers", request(40, 0));
+        parseRequest(runner, "parse request 8K cookie", request(0, 8 * 1024));
+
+        // a large header arriving in TCP segments, parsed after every read
+        parseInSegments(runner, "parse request 8K cookie in 1460B reads", request(0, 8 * 1024), 1460);
+        parseInSegments(runner, "parse request 32K cookie in 1460B reads", request(0, 32 * 1024), 1460);
+
+        byte[] responseBody = "x".repeat(1024).getBytes(StandardCharsets.US_ASCII);
+        parseResponse(runner, "parse response header", RESPONSE_HEADER, responseBody);
+        parseResponse(runner, "frame chunked 64K", chunkedResponse(64 * 1024, 4096), new byte[0]);
+
+        BufferChain requestBuffer = chain(null, HttpParserBenchmark.REQUEST.getBytes(StandardCharsets.US_ASCII));
+        HttpRequest request = new HttpRequest();
+        request.parse(requestBuffer, requestBuffer.size());
+        ForwardedHeader header = new ForwardedHeader();
+        runner.run("forward GET header", () -> {
+            request.forwardHeader(header, null);
+            return header.length();
+        });
+        runner.run("cache key", () -> request.cacheKey().length());
+
+        ByteBuffer payload = ByteBuffer.allocate(RELAY_SIZE);
+        DiscardChannel discard = new DiscardChannel(RELAY_SIZE / 3);
+        ByteBuffer heap = ByteBuffer.allocate(BufferChainRelay.SEGMENT_SIZE);
+        ByteBuffer direct = ByteBuffer.allocateDirect(BufferChainRelay.SEGMENT_SIZE);
+        runner.run("relay flip/compact heap 16K", () -> flipCompact(heap, payload.clear(), discard));
+        runner.run("relay flip/compact direct 16K", () -> flipCompact(direct, payload.clear(), discard));
+
+        BufferChainRelay heapChain = new BufferChainRelay(null);
+        BufferChainRelay pooledChain = new BufferChainRelay(new BufferPool(64L << 20));
+        runner.run("relay chain heap 16K", () -> heapChain.relay(payload.clear(), discard));
+        runner.run("relay chain pooled 16K", () -> pooledChain.relay(payload.clear(), discard));
+
+        if (args.length > 1)
+            runner.appendCsv(Path.of(args[1]), args[0]);
+        if (runner.sink() == 42)
+            System.out.println();
+    }
+
+    private static void parseRequest(BenchmarkRunner runner, String name, String text) {
+        BufferChain buffer = chain(null, text.getBytes(StandardCharsets.US_ASCII));
+        HttpRequest request = new HttpRequest();
+
+        runner.run(name, () -> {
+            request.reset();
+            return request.parse(buffer, buffer.size());
+        });
+    }
+
+    private static void parseInSegments(BenchmarkRunner runner, String name, String text, int segmentSize) {
+        BufferChain buffer = chain(null, text.getBytes(StandardCharsets.US_ASCII));
+        HttpRequest request = new HttpRequest();
+
+        runner.run(name, () -> {
+            request.reset();
+
+            int result = HttpBase.PARSE_INCOMPLETE;
+            for (int end = segmentSize; result == HttpBase.PARSE_INCOMPLETE; end += segmentSize)
+                result = request.parse(buffer, Math.min(end, buffer.size()));
+
+            return result;
+        });
+    }
+
+    private static void parseResponse(BenchmarkRunner runner, String name, String header, byte[] body) {
+        BufferChain buffer = chain(null, header.getBytes(StandardCharsets.US_ASCII));
+        buffer.put(body);
+        HttpResponse response = new HttpResponse();
+
+        runner.run(name, () -> {
+            response.reset();
+            return response.feed(buffer, 0, buffer.size());
+        });
+    }
+
+    private static BufferChain chain(BufferPool pool, byte[] bytes) {
+        BufferChain buffer = new BufferChain(pool, 2048);
+        buffer.put(bytes);
+
+        return buffer;
+    }
+
+    // the relay loop of a single buffer: read into it, flip, write what the socket takes, compact
+    private static long flipCompact(ByteBuffer buffer, ByteBuffer source, DiscardChannel target) {
+        long written = 0;
+
+        while (source.hasRemaining() || buffer.position() > 0) {
+            int n = Math.min(source.remaining(), buffer.remaining());
+            buffer.put(buffer.position(), source, source.position(), n);
+            buffer.position(buffer.position() + n);
+            source.position(source.position() + n);
+
+            buffer.flip();
+            written += target.write(buffer);
+            buffer.compact();
+        }
+
+        return written;
+    }
+
+    // read in segments, drain with gathering writes, segments go back to the pool
+    private static class BufferChainRelay {
+        static final int SEGMENT_SIZE = 2048;
+
+        private final BufferChain chain;
+
+        BufferChainRelay(BufferPool pool) {
+            this.chain = new BufferChain(pool, SEGMENT_SIZE);
+        }
+
+        long relay(ByteBuffer source, GatheringByteChannel target) {
+            long written = 0;
+
+            try {
+                while (source.hasRemaining() || !chain.isEmpty()) {
+                    chain.put(source);
+                    written += chain.writeTo(target);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+
+            return written;
+        }
+    }
+
+    /**
+     * A socket that takes at most limit bytes per write, like a full send buffer would.
+     */
+    private static class DiscardChannel implements GatheringByteChannel {
+        private final int limit;
+
+        DiscardChannel(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = Math.min(limit, src.remaining());
+            src.position(src.position() + n);
+
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long total = 0;
+            for (int i = offset; i < offset + length && total < limit; i++) {
+                int n = (int) Math.min(limit - total, srcs[i].remaining());
+                srcs[i].position(srcs[i].position() + n);
+                total += n;
+            }
+
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
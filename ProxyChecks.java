@@ -0,0 +1,542 @@
+package com.ming;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+/**
+ * Offline checks of behaviour that is easy to break without anything failing loudly: a
+ * response cached that should not be, a connection kept open that should close. Each check
+ * prints ok or what went wrong, the exit status is the number of failed checks.
+ * Run with: java com.ming.ProxyChecks
+ */
+class ProxyChecks {
+
+    interface Check {
+        void run() throws Exception;
+    }
+
+    private final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) {
+        ProxyChecks checks = new ProxyChecks();
+
+        checks.run("fresh response without caching headers is not cached", ProxyChecks::uncacheableFirstResponse);
+        checks.run("fresh response with Expires is cached without validators", ProxyChecks::expiresFirstResponse);
+        checks.run("response closing its connection is not cached", ProxyChecks::closingResponse);
+        checks.run("response keeping its connection alive stays open", ProxyChecks::keepAliveResponse);
+        checks.run("cache hit carries its own Age line", ProxyChecks::cacheHitAge);
+        checks.run("disk cache drops a torn record and what follows it", ProxyChecks::tornDiskRecord);
+        checks.run("ambiguous request framing is rejected", ProxyChecks::ambiguousFraming);
+        checks.run("chunked request is forwarded without Content-Length", ProxyChecks::chunkedWithLength);
+        checks.run("upgrade request is forwarded with its Upgrade", ProxyChecks::upgradeForwarded);
+        checks.run("timer wheel wakes for its earliest timer only", ProxyChecks::timerWakeups);
+        checks.run("connect races past dead addresses and ranks the live one first", ProxyChecks::connectRace);
+        checks.run("upstream closed before a failed connect is counted once", ProxyChecks::upstreamClosedOnce);
+        checks.run("a lookup that never answers fails within its timeout", ProxyChecks::resolveTimeout);
+
+        System.exit(checks.failures.size());
+    }
+
+    private void run(String name, Check check) {
+        try {
+            check.run();
+            System.out.printf("ok    %s%n", name);
+        } catch (Exception | AssertionError e) {
+            failures.add(name);
+            System.out.printf("FAIL  %s: %s%n", name, e);
+        }
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+    // the first response of a new upstream connection is parsed by a response never reset
+    private static void uncacheableFirstResponse() {
+        HttpResponse response = parseResponse("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: 2\r\n\r\nok");
+
+        check(response.maxAge == -1, "max-age without Cache-Control: " + response.maxAge);
+        check(!response.hasValidators(), "validators without ETag or Last-Modified");
+        check(new ResponseCache(1 << 20, 1 << 16).capture("k", response, System.currentTimeMillis()) == null,
+                "captured without freshness or validators");
+    }
+
+    private static void expiresFirstResponse() {
+        HttpResponse response = parseResponse("HTTP/1.1 200 OK\r\nExpires: Fri, 01 Jan 2100 00:00:00 GMT\r\nContent-Length: 2\r\n\r\nok");
+
+        ResponseCache.Capture capture = new ResponseCache(1 << 20, 1 << 16).capture("k", response, System.currentTimeMillis());
+        check(capture != null, "not captured despite Expires");
+        check(capture.validators == null, "captured with validators");
+    }
+
+    private static void closingResponse() {
+        for (String message : new String[] {
+                "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nConnection: close\r\nContent-Length: 2\r\n\r\nok",
+                "HTTP/1.0 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: 2\r\n\r\nok",
+                "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nConnection: keep-alive, close\r\nContent-Length: 2\r\n\r\nok",
+                "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nConnection: close\r\nConnection: keep-alive\r\nContent-Length: 2\r\n\r\nok",
+                "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nConnection: Close, Upgrade\r\nContent-Length: 2\r\n\r\nok"}) {
+            HttpResponse response = parseResponse(message);
+            check(response.connectionClose, "kept open: " + message.substring(0, message.indexOf("\r\n\r\n")).replace("\r\n", "|"));
+            check(new ResponseCache(1 << 20, 1 << 16).capture("k", response, System.currentTimeMillis()) == null,
+                    "captured: " + message.substring(0, message.indexOf('\r')));
+        }
+    }
+
+    private static void keepAliveResponse() {
+        HttpResponse response = parseResponse("HTTP/1.0 200 OK\r\nConnection: Keep-Alive\r\nContent-Length: 2\r\n\r\nok");
+        check(!response.connectionClose, "HTTP/1.0 keep-alive closed");
+
+        response = parseResponse("HTTP/1.1 200 OK\r\nConnection: keep-alive, x-option\r\nContent-Length: 2\r\n\r\nok");
+        check(!response.connectionClose, "keep-alive with another option closed");
+    }
+
+    // the upstream's Age is left out of the copy and counted on in the one a hit gets
+    private static void cacheHitAge() {
+        String message = "HTTP/1.1 200 OK\r\nCache-Control: max-age=600\r\nAge: 100\r\nContent-Length: 2\r\n\r\nok";
+        BufferChain buffer = new BufferChain(null, 2048);
+        buffer.put(message.getBytes(StandardCharsets.US_ASCII));
+        HttpResponse response = new HttpResponse();
+        response.feed(buffer, 0, buffer.size());
+
+        long now = System.currentTimeMillis();
+        ResponseCache cache = new ResponseCache(1 << 20, 1 << 16);
+        ResponseCache.Capture capture = cache.capture("k", response, now);
+        check(capture != null && capture.append(buffer, 0, buffer.size()), "not captured");
+        cache.put(capture, response.messageLength);
+
+        ByteBuffer[] views = new ByteBuffer[3];
+        cache.get("k", now).source(views, ByteBuffer.allocate(ResponseCache.AGE_LINE_SIZE), now + 5_000);
+
+        StringBuilder served = new StringBuilder();
+        for (ByteBuffer view : views) {
+            byte[] bytes = new byte[view.remaining()];
+            view.get(bytes);
+            served.append(new String(bytes, StandardCharsets.US_ASCII));
+        }
+
+        String expected = "HTTP/1.1 200 OK\r\nCache-Control: max-age=600\r\nContent-Length: 2\r\nAge: 105\r\n\r\nok";
+        check(served.toString().equals(expected), "served " + served.toString().replace("\r\n", "|"));
+    }
+
+    // a flipped byte in the second record's body, as a crash half way through writing it
+    private static void tornDiskRecord() throws Exception {
+        Path directory = Files.createTempDirectory("proxy-checks");
+        try {
+            long expiresAt = System.currentTimeMillis() + 60_000;
+            DiskCache disk = new DiskCache(directory, 1 << 16, 1 << 20);
+            for (int i = 0; i < 3; i++) {
+                byte[] data = ("HTTP/1.1 200 OK\r\n\r\nbody-" + i).getBytes(StandardCharsets.US_ASCII);
+                disk.put(new ResponseCache.Entry("k" + i, ByteBuffer.wrap(data), null, expiresAt, 19, 0));
+            }
+            disk.close(5_000);
+            check(disk.size() == 3, "written " + disk.size());
+
+            Path segment;
+            try (Stream<Path> files = Files.list(directory)) {
+                segment = files.findFirst().orElseThrow();
+            }
+            try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+                byte[] bytes = new byte[1024];
+                file.readFully(bytes);
+                int at = new String(bytes, StandardCharsets.ISO_8859_1).indexOf("body-1");
+                file.seek(at);
+                file.write('B');
+            }
+
+            DiskCache reopened = new DiskCache(directory, 1 << 16, 1 << 20);
+            check(reopened.get("k0", System.currentTimeMillis()) != null, "record before the torn one lost");
+            check(reopened.get("k1", System.currentTimeMillis()) == null, "torn record read back");
+            check(reopened.size() == 1, "records after the torn one read back: " + reopened.size());
+            reopened.close(5_000);
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    // the classic smuggling patterns, each read one way by the proxy and another by the next hop
+    private static void ambiguousFraming() {
+        String[] headers = {
+                "Content-Length: 5\r\nContent-Length: 6\r\n",
+                "Content-Length: 5\r\nContent-Length: 5\r\n",
+                "Content-Length: 5, 6\r\n",
+                "Content-Length: +5\r\n",
+                "Transfer-Encoding: xchunked\r\n",
+                "Transfer-Encoding: chunked, gzip\r\n",
+                "Transfer-Encoding: chunked\r\nTransfer-Encoding: chunked\r\n",
+                "Transfer-Encoding: gzip\r\n"};
+
+        for (String header : headers) {
+            HttpRequest request = new HttpRequest();
+            int result = request.parse(chain("POST http://example.com/ HTTP/1.1\r\nHost: example.com\r\n" + header + "\r\n"), Integer.MAX_VALUE);
+            check(result == HttpBase.PARSE_ERROR, "accepted " + header.replace("\r\n", "|"));
+        }
+
+        HttpRequest request = new HttpRequest();
+        int result = request.parse(chain("POST http://example.com/ HTTP/1.1\r\nTransfer-Encoding: gzip, Chunked\r\n\r\n"), Integer.MAX_VALUE);
+        check(result == HttpBase.PARSE_DONE && request.chunked, "rejected gzip, chunked");
+    }
+
+    private static void chunkedWithLength() throws Exception {
+        HttpRequest request = new HttpRequest();
+        BufferChain buffer = chain("POST http://example.com/upload HTTP/1.1\r\nHost: example.com\r\n" +
+                "Content-Length: 4\r\nTransfer-Encoding: chunked\r\nX-After: 1\r\n\r\n");
+        check(request.parse(buffer, buffer.size()) == HttpBase.PARSE_DONE, "not parsed");
+
+        ForwardedHeader header = new ForwardedHeader();
+        request.forwardHeader(header, null);
+        String forwarded = written(header);
+
+        check(!forwarded.toLowerCase().contains("content-length"), "forwarded " + forwarded.replace("\r\n", "|"));
+        check(forwarded.contains("Transfer-Encoding: chunked\r\nX-After: 1\r\n"), "forwarded " + forwarded.replace("\r\n", "|"));
+    }
+
+    private static void upgradeForwarded() throws Exception {
+        HttpRequest request = new HttpRequest();
+        BufferChain buffer = chain("GET http://example.com/chat HTTP/1.1\r\nHost: example.com\r\n" +
+                "Connection: keep-alive, Upgrade\r\nUpgrade: websocket\r\nSec-WebSocket-Version: 13\r\n\r\n");
+        check(request.parse(buffer, buffer.size()) == HttpBase.PARSE_DONE && request.upgrade, "not an upgrade");
+
+        ForwardedHeader header = new ForwardedHeader();
+        request.forwardHeader(header, null);
+        String forwarded = written(header);
+        check(forwarded.contains("\r\nUpgrade: websocket\r\n") && forwarded.contains("\r\nConnection: upgrade\r\n") &&
+                !forwarded.contains(HttpBase.KEEP_ALIVE), "forwarded " + forwarded.replace("\r\n", "|"));
+
+        // an Upgrade the client's Connection does not name is only meant for the proxy
+        request = new HttpRequest();
+        buffer = chain("GET http://example.com/chat HTTP/1.1\r\nHost: example.com\r\nUpgrade: websocket\r\n\r\n");
+        check(request.parse(buffer, buffer.size()) == HttpBase.PARSE_DONE && !request.upgrade, "an upgrade");
+
+        header = new ForwardedHeader();
+        request.forwardHeader(header, null);
+        forwarded = written(header);
+        check(!forwarded.contains("Upgrade") && forwarded.contains(HttpBase.KEEP_ALIVE), "forwarded " + forwarded.replace("\r\n", "|"));
+    }
+
+    // an idle reactor with one far timer should sleep until it, not wake every tick
+    private static void timerWakeups() {
+        long now = 1_000_000;
+        TimerWheel wheel = new TimerWheel(100, 512, now);
+        check(wheel.nextTick() == Long.MAX_VALUE, "tick without timers");
+
+        TimerWheel.Timer far = new TimerWheel.Timer(() -> { });
+        wheel.schedule(far, now + 120_000);
+        check(wheel.nextTick() == now + 120_000, "far timer due at " + wheel.nextTick());
+
+        TimerWheel.Timer near = new TimerWheel.Timer(() -> { });
+        wheel.schedule(near, now + 5_050);
+        check(wheel.nextTick() == now + 5_100, "near timer due at " + wheel.nextTick());
+
+        int[] runs = new int[1];
+        TimerWheel.Timer late = new TimerWheel.Timer(() -> runs[0]++);
+        wheel.schedule(late, now + 30_000);
+        wheel.advance(now + 5_100);
+        check(wheel.size() == 2, "left after the near timer " + wheel.size());
+        check(wheel.nextTick() == now + 30_000, "next due at " + wheel.nextTick());
+
+        wheel.advance(now + 30_000);
+        check(runs[0] == 1 && wheel.nextTick() == now + 120_000, "far timer due at " + wheel.nextTick());
+    }
+
+    // all on loopback: 127.0.0.2 never answers a SYN, 127.0.0.3 refuses, 127.0.0.1 serves
+    private static void connectRace() throws Exception {
+        List<Socket> backlog = new ArrayList<>();
+        try (ServerSocket origin = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+             ServerSocket hole = new ServerSocket()) {
+            int port = origin.getLocalPort();
+            Thread serving = new Thread(() -> serve(origin), "checks-origin");
+            serving.setDaemon(true);
+            serving.start();
+
+            // a listener that never accepts, once its backlog is full the SYNs are dropped
+            hole.bind(new InetSocketAddress("127.0.0.2", port), 1);
+            for (int i = 0; i < 4; i++) {
+                Socket socket = new Socket();
+                try {
+                    socket.connect(new InetSocketAddress("127.0.0.2", port), 300);
+                    backlog.add(socket);
+                } catch (IOException e) {
+                    socket.close();
+                    break;
+                }
+            }
+
+            InetAddress[] addresses = {
+                    InetAddress.getByName("127.0.0.2"), InetAddress.getByName("127.0.0.3"), InetAddress.getByName("127.0.0.1")};
+            DnsResolver resolver = host -> addresses.clone();
+
+            int proxyPort = freePort();
+            IOMultiplexProxyServer proxy = new IOMultiplexProxyServer(proxyPort, 1, IOMultiplexProxyServer.Balance.ROUND_ROBIN,
+                    16L << 20, resolver);
+            proxy.setListener("127.0.0.1", false, IOMultiplexProxyServer.DEFAULT_BACKLOG);
+            Thread running = new Thread(proxy::runServer, "checks-proxy");
+            running.setDaemon(true);
+            running.start();
+            awaitListening(proxyPort);
+
+            try {
+                // the black hole is tried first, only a race gets past it before its timeout
+                long start = System.nanoTime();
+                String status = get(proxyPort, "first.test", port);
+                long elapsed = (System.nanoTime() - start) / 1_000_000;
+                check(status.startsWith("HTTP/1.1 200"), "first host answered " + status);
+                check(elapsed < IOMultiplexProxyServer.CONNECT_TIMEOUT_MILLIS, "first host took " + elapsed + " ms");
+                check(connectStat(proxy, "fallbacks") == 1, proxy.loadReport());
+
+                // the same addresses under another name: the live one is tried first and alone
+                long attempts = connectStat(proxy, "attempts");
+                start = System.nanoTime();
+                status = get(proxyPort, "second.test", port);
+                elapsed = (System.nanoTime() - start) / 1_000_000;
+                check(status.startsWith("HTTP/1.1 200"), "second host answered " + status);
+                check(elapsed < IOMultiplexProxyServer.CONNECT_ATTEMPT_DELAY_MILLIS, "second host took " + elapsed + " ms");
+                check(connectStat(proxy, "attempts") == attempts + 1, proxy.loadReport());
+            } finally {
+                proxy.drain(1_000);
+            }
+        } finally {
+            for (Socket socket : backlog)
+                socket.close();
+        }
+    }
+
+    private static void awaitListening(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (true) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw e;
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    // answers every request of a connection until the proxy closes it
+    private static void serve(ServerSocket origin) {
+        while (true) {
+            Socket socket;
+            try {
+                socket = origin.accept();
+            } catch (IOException e) {
+                return;
+            }
+
+            Thread connection = new Thread(() -> {
+                try (socket) {
+                    InputStream in = socket.getInputStream();
+                    while (readHeader(in) != null)
+                        socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes(StandardCharsets.US_ASCII));
+                } catch (IOException e) {
+                    // the proxy went away
+                }
+            });
+            connection.setDaemon(true);
+            connection.start();
+        }
+    }
+
+    // a keep-alive client's second target refuses: the first upstream is closed once, not twice
+    private static void upstreamClosedOnce() throws Exception {
+        try (ServerSocket origin = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))) {
+            Thread serving = new Thread(() -> serve(origin), "checks-origin");
+            serving.setDaemon(true);
+            serving.start();
+
+            int refused = freePort();
+            int proxyPort = freePort();
+            VirtualThreadProxyServer proxy = new VirtualThreadProxyServer(proxyPort);
+            Thread running = new Thread(proxy::runServer, "checks-proxy");
+            running.setDaemon(true);
+            running.start();
+            awaitListening(proxyPort);
+
+            try (Socket socket = new Socket("127.0.0.1", proxyPort)) {
+                socket.setSoTimeout(5_000);
+                OutputStream out = socket.getOutputStream();
+                InputStream in = socket.getInputStream();
+                out.write(("GET http://127.0.0.1:" + origin.getLocalPort() + "/ HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                check(readHeader(in) != null && in.readNBytes(2).length == 2, "first request not answered");
+
+                out.write(("GET http://127.0.0.1:" + refused + "/ HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                check(in.read() < 0, "second request answered");
+            }
+
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (proxy.metrics.clientConnections.get() > 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(20);
+            check(proxy.metrics.upstreamConnections.get() == 0, "upstream connections " + proxy.metrics.upstreamConnections.get());
+        }
+    }
+
+    private static void resolveTimeout() throws Exception {
+        CountDownLatch answer = new CountDownLatch(1);
+        DnsResolver resolver = host -> {
+            try {
+                answer.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new InetAddress[] {InetAddress.getByName("127.0.0.1")};
+        };
+
+        int proxyPort = freePort();
+        IOMultiplexProxyServer proxy = new IOMultiplexProxyServer(proxyPort, 1, IOMultiplexProxyServer.Balance.ROUND_ROBIN,
+                16L << 20, resolver);
+        proxy.setListener("127.0.0.1", false, IOMultiplexProxyServer.DEFAULT_BACKLOG);
+        Thread running = new Thread(proxy::runServer, "checks-proxy");
+        running.setDaemon(true);
+        running.start();
+        awaitListening(proxyPort);
+
+        try {
+            long start = System.nanoTime();
+            String status = get(proxyPort, "slow.test", 80);
+            long elapsed = (System.nanoTime() - start) / 1_000_000;
+            check(status.equals("nothing"), "answered " + status);
+            check(elapsed < IOMultiplexProxyServer.RESOLVE_TIMEOUT_MILLIS + 1_000, "closed after " + elapsed + " ms");
+
+            // the client is closed first, its upstream right after
+            long deadline = System.currentTimeMillis() + 1_000;
+            while (proxy.metrics.upstreamConnections.get() > 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(20);
+            check(proxy.metrics.upstreamConnections.get() == 0, "upstream connections " + proxy.metrics.upstreamConnections.get());
+        } finally {
+            answer.countDown();
+            proxy.drain(1_000);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket free = new ServerSocket(0)) {
+            return free.getLocalPort();
+        }
+    }
+
+    // the status line of a GET for host through the proxy
+    private static String get(int proxyPort, String host, int port) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", proxyPort)) {
+            socket.setSoTimeout(5_000);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET http://" + host + ":" + port + "/ HTTP/1.1\r\nHost: " + host + ":" + port +
+                    "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+
+            String header = readHeader(socket.getInputStream());
+            return header == null ? "nothing" : header.substring(0, header.indexOf('\r'));
+        }
+    }
+
+    private static String readHeader(InputStream in) throws IOException {
+        StringBuilder header = new StringBuilder();
+        while (header.length() < 4 || header.lastIndexOf("\r\n\r\n") != header.length() - 4) {
+            int b = in.read();
+            if (b < 0)
+                return null;
+            header.append((char) b);
+        }
+
+        return header.toString();
+    }
+
+    private static long connectStat(IOMultiplexProxyServer proxy, String name) {
+        for (String line : proxy.loadReport().split("\n")) {
+            if (line.startsWith("connect ")) {
+                int at = line.indexOf(" " + name + "=") + name.length() + 2;
+                int end = line.indexOf(' ', at);
+                return Long.parseLong(line.substring(at, end < 0 ? line.length() : end));
+            }
+        }
+
+        return -1;
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList())
+                Files.deleteIfExists(path);
+        }
+    }
+
+    static BufferChain chain(String message) {
+        BufferChain buffer = new BufferChain(null, 2048);
+        buffer.put(message.getBytes(StandardCharsets.US_ASCII));
+
+        return buffer;
+    }
+
+    static String written(ForwardedHeader header) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GatheringByteChannel channel = new GatheringByteChannel() {
+            @Override
+            public long write(ByteBuffer[] srcs, int offset, int length) {
+                long total = 0;
+                for (int i = offset; i < offset + length; i++)
+                    total += write(srcs[i]);
+
+                return total;
+            }
+
+            @Override
+            public long write(ByteBuffer[] srcs) {
+                return write(srcs, 0, srcs.length);
+            }
+
+            @Override
+            public int write(ByteBuffer src) {
+                int n = src.remaining();
+                byte[] bytes = new byte[n];
+                src.get(bytes);
+                out.write(bytes, 0, n);
+
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        while (header.hasRemaining())
+            header.writeTo(channel);
+
+        return out.toString(StandardCharsets.US_ASCII);
+    }
+
+    static HttpResponse parseResponse(String message) {
+        BufferChain buffer = new BufferChain(null, 2048);
+        buffer.put(message.getBytes(StandardCharsets.US_ASCII));
+
+        HttpResponse response = new HttpResponse();
+        check(response.feed(buffer, 0, buffer.size()) == HttpBase.PARSE_DONE, "response not parsed");
+
+        return response;
+    }
+}
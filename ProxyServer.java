@@ -1,20 +1,98 @@
 package com.ming;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 
 abstract class ProxyServer {
 
+    static final long LOG_FILE_MAX_BYTES = 64L << 20;
+    static final int LOG_FILES = 5;
+
     static final byte[] CONNECT_SUCCESS_RESPONSE = (
             "HTTP/1.1 200 Connection established\r\n" +
                     "Proxy-Agent: ProxyServer/1.0\r\n" +
                     "\r\n"
     ).getBytes(StandardCharsets.UTF_8);
 
+    // answers Expect: 100-continue, the body is streamed to the upstream as it arrives
+    static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+
+    // refused before anything is parsed, the connection is closed right after
+    static final byte[] SERVICE_UNAVAILABLE_RESPONSE = (
+            "HTTP/1.1 503 Service Unavailable\r\n" +
+                    "Content-Length: 0\r\n" +
+                    "Retry-After: 1\r\n" +
+                    "Connection: close\r\n" +
+                    "\r\n"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    static final byte[] TOO_MANY_REQUESTS_RESPONSE = (
+            "HTTP/1.1 429 Too Many Requests\r\n" +
+                    "Content-Length: 0\r\n" +
+                    "Retry-After: 1\r\n" +
+                    "Connection: close\r\n" +
+                    "\r\n"
+    ).getBytes(StandardCharsets.UTF_8);
+
     final int port;
+    final Metrics metrics;
 
     ProxyServer(int port) {
+        this(port, new Metrics(1));
+    }
+
+    ProxyServer(int port, Metrics metrics) {
         this.port = port;
+        this.metrics = metrics;
+
+        metrics.counter("proxy_log_dropped_total", "Log records dropped because the log ring was full.", AsyncLog.get()::getDropped);
     }
 
     abstract void runServer();
+
+    /**
+     * Usage: [nio|virtual] [port] [workers] [admin port] [log file] [reuseport], the selector
+     * engine on port 8080 by default, "-" skips an optional argument. With an admin port the
+     * metrics are served on http://localhost:port/metrics, with a log file the access log goes
+     * there instead of stdout. With reuseport every worker listens on the port with
+     * SO_REUSEPORT, so does any other process started the same way.
+     *
+     * On SIGTERM the selector engine drains before it exits: it stops accepting and lets the
+     * open connections finish. A restart without downtime starts the new process first and
+     * then stops the old one, both with reuseport.
+     */
+    public static void main(String[] args) throws Exception {
+        String engine = isSet(args, 0) ? args[0] : "nio";
+        int port = isSet(args, 1) ? Integer.parseInt(args[1]) : 8080;
+        int workers = isSet(args, 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        if (isSet(args, 4))
+            AsyncLog.configure(Path.of(args[4]), LOG_FILE_MAX_BYTES, LOG_FILES);
+
+        ProxyServer server = create(engine, port, workers);
+        if (isSet(args, 3))
+            server.metrics.startAdmin(Integer.parseInt(args[3]));
+
+        if (server instanceof IOMultiplexProxyServer nio) {
+            if (isSet(args, 5))
+                nio.setListener(IOMultiplexProxyServer.DEFAULT_BIND_HOST, args[5].equals("reuseport"),
+                        IOMultiplexProxyServer.DEFAULT_BACKLOG);
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> nio.drain(IOMultiplexProxyServer.DEFAULT_DRAIN_TIMEOUT_MILLIS)));
+        }
+
+        server.runServer();
+    }
+
+    private static boolean isSet(String[] args, int index) {
+        return args.length > index && !args[index].equals("-");
+    }
+
+    static ProxyServer create(String engine, int port, int workers) throws IOException {
+        return switch (engine) {
+            case "nio" -> new IOMultiplexProxyServer(port, workers, IOMultiplexProxyServer.Balance.LEAST_LOADED);
+            case "virtual" -> new VirtualThreadProxyServer(port);
+            default -> throw new IllegalArgumentException("Unknown engine: " + engine);
+        };
+    }
 }
@@ -0,0 +1,375 @@
+package com.ming;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * GET responses kept in memory, shared by all workers. Each entry is the complete response as
+ * it came from the server (header and body) in one direct buffer, written to clients from
+ * there. Entries are evicted least recently used first once the total size is over the limit.
+ * With a disk tier every entry is also written there, and memory misses are looked up on disk.
+ *
+ * Only responses the server lets the connection live on are kept, their header is replayed to
+ * keep-alive clients as it is. An upstream Age line is left out of the copy, a hit gets one of
+ * its own for how long the response has been cached.
+ */
+class ResponseCache {
+
+    private static final byte[] IF_NONE_MATCH_PREFIX = "If-None-Match: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IF_MODIFIED_SINCE_PREFIX = "If-Modified-Since: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NEW_LINE_BYTES = HttpBase.NEW_LINE_SEPARATOR.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] AGE_PREFIX = "Age: ".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Room for an Age line written for a hit
+     */
+    static final int AGE_LINE_SIZE = 32;
+
+    private static final int INITIAL_CAPTURE_SIZE = 16 * 1024;
+
+    static final class Entry {
+        final String key;
+        final ByteBuffer data;
+
+        // conditional request header lines, or null if the response has no validators
+        final byte[] validators;
+
+        // where the body starts in data, the header ends with its empty line
+        final int headerSize;
+
+        private volatile long expiresAt;
+
+        // when the response was as good as new, its Age is counted from here
+        private volatile long bornAt;
+
+        Entry(String key, ByteBuffer data, byte[] validators, long expiresAt, int headerSize, long bornAt) {
+            this.key = key;
+            this.data = data;
+            this.validators = validators;
+            this.expiresAt = expiresAt;
+            this.headerSize = headerSize;
+            this.bornAt = bornAt;
+        }
+
+        boolean isFresh(long now) {
+            return now < expiresAt;
+        }
+
+        long expiresAt() {
+            return expiresAt;
+        }
+
+        long bornAt() {
+            return bornAt;
+        }
+
+        /**
+         * The response as served at now, in views: the header without its empty line, the
+         * Age line and empty line written into ageLine, then the body. One set per client
+         * served, gathered by a single write.
+         */
+        void source(ByteBuffer[] views, ByteBuffer ageLine, long now) {
+            ageLine.clear().put(AGE_PREFIX);
+            long age = Math.max(now - bornAt, 0) / 1000;
+            ageLine.put(Long.toString(age).getBytes(StandardCharsets.US_ASCII));
+            ageLine.put(NEW_LINE_BYTES).put(NEW_LINE_BYTES).flip();
+
+            int headerEnd = headerSize - NEW_LINE_BYTES.length;
+            views[0] = data.duplicate().limit(headerEnd);
+            views[1] = ageLine;
+            views[2] = data.duplicate().position(headerSize);
+        }
+    }
+
+    /**
+     * A response being copied aside while it is relayed, cached once it is complete.
+     */
+    static final class Capture {
+        final String key;
+        final byte[] validators;
+        final long expiresAt;
+        final long bornAt;
+        private final int maxSize;
+        private ByteBuffer data;
+
+        // the upstream's Age line in the header, left out of the copy
+        private int skipFrom;
+        private int skipTo;
+        private final int skipped;
+        final int headerSize;
+
+        private Capture(String key, byte[] validators, long expiresAt, long bornAt, int headerSize,
+                        int skipFrom, int skipTo, int initialSize, int maxSize) {
+            this.key = key;
+            this.validators = validators;
+            this.expiresAt = expiresAt;
+            this.bornAt = bornAt;
+            this.skipped = skipTo - skipFrom;
+            this.headerSize = headerSize - skipped;
+            this.skipFrom = skipFrom;
+            this.skipTo = skipTo;
+            this.maxSize = maxSize;
+            this.data = ByteBuffer.allocateDirect(initialSize);
+        }
+
+        /**
+         * Bytes of the response left out of the copy.
+         */
+        int skipped() {
+            return skipped;
+        }
+
+        /**
+         * Copy buffer[from, to), false once the response outgrows the maximum entry size. The
+         * first copy starts with the header at 0.
+         */
+        boolean append(BufferChain buffer, int from, int to) {
+            if (skipTo > skipFrom && data.position() == 0) {
+                int before = skipFrom;
+                from = skipTo;
+                skipFrom = skipTo = 0;
+
+                if (!append(buffer, 0, before))
+                    return false;
+            }
+
+            int length = to - from;
+
+            if (data.remaining() < length) {
+                long needed = (long) data.position() + length;
+                if (needed > maxSize)
+                    return false;
+
+                int capacity = (int) Math.min(maxSize, Math.max(needed, 2L * data.capacity()));
+                ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+                grown.put(data.flip());
+                data = grown;
+            }
+
+            buffer.copyTo(from, data, length);
+
+            return true;
+        }
+    }
+
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private final DiskCache disk;
+
+    // access order, guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+
+    ResponseCache(long maxBytes, int maxEntryBytes) {
+        this(maxBytes, maxEntryBytes, null);
+    }
+
+    /**
+     * disk is the second tier, or null for memory only.
+     */
+    ResponseCache(long maxBytes, int maxEntryBytes, DiskCache disk) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.disk = disk;
+    }
+
+    /**
+     * The entry for key if it is fresh or can be revalidated, null otherwise. Only fresh
+     * entries count as hits, a stale one is a hit once the server answers 304.
+     */
+    synchronized Entry get(String key, long now) {
+        Entry entry = entries.get(key);
+
+        if (entry != null && !entry.isFresh(now) && entry.validators == null) {
+            remove(entry);
+            entry = null;
+        }
+
+        if (entry == null && disk != null) {
+            // served from the segment's mapping, not brought back into memory
+            entry = disk.get(key, now);
+            if (entry != null && entry.isFresh(now))
+                diskHits.incrementAndGet();
+        }
+
+        if (entry != null && entry.isFresh(now)) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+
+        return entry;
+    }
+
+    /**
+     * Start copying a response whose header was just parsed, or null if it cannot be cached:
+     * only complete 200s that are neither private nor per user, that are fresh or can be
+     * revalidated, and that have a framed body small enough.
+     */
+    Capture capture(String key, HttpResponse response, long now) {
+        if (response.statusCode != 200 || response.noStore || response.hasSetCookie || response.hasVary)
+            return null;
+
+        // its Connection: close would be replayed on connections kept open
+        if (response.connectionClose)
+            return null;
+
+        long expiresAt = response.freshUntil(now);
+        if (expiresAt <= now && !response.hasValidators())
+            return null;
+
+        int initialSize;
+        switch (response.bodyType) {
+            case HttpResponse.BODY_LENGTH -> {
+                long size = response.hdrSize + response.contentLen;
+                if (size > maxEntryBytes)
+                    return null;
+
+                initialSize = (int) size;
+            }
+            case HttpResponse.BODY_CHUNKED -> initialSize = Math.min(INITIAL_CAPTURE_SIZE, maxEntryBytes);
+            default -> {
+                // a close-delimited body cannot be replayed on a kept-alive connection
+                return null;
+            }
+        }
+
+        int skipFrom = 0, skipTo = 0;
+        int ageIndex = response.ageIndex;
+        if (ageIndex >= 0) {
+            skipFrom = response.nameOffset(ageIndex);
+            skipTo = response.buffer.indexOf(HttpBase.LF, response.valueOffset(ageIndex) + response.valueLength(ageIndex),
+                    response.hdrSize) + 1;
+        }
+
+        return new Capture(key, validators(response), expiresAt, now - response.age() * 1000, response.hdrSize,
+                skipFrom, skipTo, initialSize, maxEntryBytes);
+    }
+
+    /**
+     * Cache the first length bytes of a completed capture, replacing any older entry.
+     */
+    void put(Capture capture, long length) {
+        length -= capture.skipped();
+        ByteBuffer data = capture.data.flip();
+        if (length > data.limit())
+            return;
+
+        data.limit((int) length);
+        if (data.capacity() > length) {
+            // a chunked body grew the capture by doubling, keep only what is used
+            data = ByteBuffer.allocateDirect((int) length).put(data).flip();
+        }
+
+        Entry entry = new Entry(capture.key, data.asReadOnlyBuffer(), capture.validators, capture.expiresAt,
+                capture.headerSize, capture.bornAt);
+
+        synchronized (this) {
+            Entry old = entries.put(entry.key, entry);
+            if (old != null)
+                totalBytes -= old.data.capacity();
+            totalBytes += entry.data.capacity();
+
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (totalBytes > maxBytes && eldest.hasNext()) {
+                Entry evicted = eldest.next();
+                eldest.remove();
+                totalBytes -= evicted.data.capacity();
+            }
+        }
+
+        // write-through, the disk tier outlives both eviction and restarts
+        if (disk != null)
+            disk.put(entry);
+    }
+
+    /**
+     * The server confirmed a stale entry with 304 Not Modified.
+     */
+    void refresh(Entry entry, long expiresAt, long bornAt) {
+        entry.expiresAt = expiresAt;
+        entry.bornAt = bornAt;
+        revalidations.incrementAndGet();
+    }
+
+    void recordServed(long bytes) {
+        bytesServed.addAndGet(bytes);
+    }
+
+    private void remove(Entry entry) {
+        if (entries.remove(entry.key, entry))
+            totalBytes -= entry.data.capacity();
+    }
+
+    // If-None-Match and If-Modified-Since lines to revalidate the response with
+    private static byte[] validators(HttpResponse response) {
+        if (!response.hasValidators())
+            return null;
+
+        ByteBuffer out = ByteBuffer.allocate(1024);
+        if (!appendValidator(out, IF_NONE_MATCH_PREFIX, response, response.etagIndex) ||
+                !appendValidator(out, IF_MODIFIED_SINCE_PREFIX, response, response.lastModifiedIndex))
+            return null;
+
+        byte[] bytes = new byte[out.flip().remaining()];
+        out.get(bytes);
+
+        return bytes;
+    }
+
+    private static boolean appendValidator(ByteBuffer out, byte[] prefix, HttpResponse response, int index) {
+        if (index < 0)
+            return true;
+
+        int length = response.valueLength(index);
+        if (out.remaining() < prefix.length + length + NEW_LINE_BYTES.length)
+            return false;
+
+        out.put(prefix);
+        response.buffer.copyTo(response.valueOffset(index), out, length);
+        out.put(NEW_LINE_BYTES);
+
+        return true;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getDiskHits() {
+        return diskHits.get();
+    }
+
+    DiskCache getDisk() {
+        return disk;
+    }
+
+    long getRevalidations() {
+        return revalidations.get();
+    }
+
+    long getBytesServed() {
+        return bytesServed.get();
+    }
+}
@@ -0,0 +1,192 @@
+package com.ming;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The timeouts of one reactor, a hashed timing wheel. A timer is linked into the slot of the
+ * tick its deadline falls in, so scheduling and cancelling are O(1) whatever the number of
+ * timers, and advancing only visits the slots of the ticks that passed. A timer more than a
+ * turn of the wheel away shares its slot with nearer ones, it is left there until its own turn.
+ *
+ * Only used on its reactor's thread, nothing is locked.
+ */
+class TimerWheel {
+
+    // unlinked and about to run, a cancel before it runs drops it
+    private static final int EXPIRING = -2;
+
+    /**
+     * A timer node, owned by one connection for its lifetime and rescheduled as its deadline
+     * moves.
+     */
+    static final class Timer {
+        private final Runnable task;
+
+        private long deadline;
+        private int slot = -1;
+        private Timer prev;
+        private Timer next;
+
+        Timer(Runnable task) {
+            this.task = task;
+        }
+
+        boolean isScheduled() {
+            return slot >= 0;
+        }
+
+        long deadline() {
+            return deadline;
+        }
+    }
+
+    private final long tickMillis;
+    private final int mask;
+
+    // heads of the doubly linked timers of each slot
+    private final Timer[] slots;
+
+    // reused by every advance()
+    private final List<Timer> expired = new ArrayList<>();
+
+    // the next tick to expire, in ticks since the epoch
+    private long tick;
+    private int size;
+
+    // the earliest tick a timer is due at, -1 until nextTick() looks again
+    private long due = -1;
+
+    /**
+     * slotCount must be a power of two, a turn of the wheel is slotCount * tickMillis.
+     */
+    TimerWheel(long tickMillis, int slotCount, long now) {
+        if (Integer.bitCount(slotCount) != 1)
+            throw new IllegalArgumentException("Slot count must be a power of two: " + slotCount);
+
+        this.tickMillis = tickMillis;
+        this.mask = slotCount - 1;
+        this.slots = new Timer[slotCount];
+        this.tick = now / tickMillis;
+    }
+
+    /**
+     * Run timer's task once deadline has passed, instead of when it was scheduled for.
+     */
+    void schedule(Timer timer, long deadline) {
+        cancel(timer);
+
+        // rounded up, a timer never runs early; a deadline already passed runs on the next tick
+        long at = Math.max(Math.ceilDiv(deadline, tickMillis), tick);
+        int slot = (int) (at & mask);
+
+        timer.deadline = deadline;
+        timer.slot = slot;
+        timer.next = slots[slot];
+        if (slots[slot] != null)
+            slots[slot].prev = timer;
+        slots[slot] = timer;
+        size++;
+
+        if (due >= 0)
+            due = Math.min(due, at);
+    }
+
+    void cancel(Timer timer) {
+        if (timer.slot == EXPIRING) {
+            timer.slot = -1;
+            return;
+        }
+
+        if (timer.slot < 0)
+            return;
+
+        unlink(timer);
+        size--;
+    }
+
+    /**
+     * When the earliest timer's tick is due, Long.MAX_VALUE without timers. A cancelled timer
+     * may still be counted until the next advance, that costs one early wakeup.
+     */
+    long nextTick() {
+        if (size == 0)
+            return Long.MAX_VALUE;
+
+        if (due < 0)
+            due = earliestTick();
+
+        return due * tickMillis;
+    }
+
+    // the first slot from tick on with a timer of this turn, else the nearest of later turns
+    private long earliestTick() {
+        long earliest = Long.MAX_VALUE;
+        for (long t = tick; t <= tick + mask; t++) {
+            for (Timer timer = slots[(int) (t & mask)]; timer != null; timer = timer.next) {
+                long at = Math.max(Math.ceilDiv(timer.deadline, tickMillis), tick);
+                if (at == t)
+                    return t;
+                earliest = Math.min(earliest, at);
+            }
+        }
+
+        return earliest;
+    }
+
+    /**
+     * Run the tasks of the timers whose deadline has passed by now. Tasks may schedule and
+     * cancel any timer, their own included.
+     */
+    void advance(long now) {
+        long last = now / tickMillis;
+        if (last < tick)
+            return;
+
+        // a long pause visits every slot once
+        long end = Math.min(last, tick + mask);
+        for (long t = tick; t <= end; t++) {
+            Timer timer = slots[(int) (t & mask)];
+            while (timer != null) {
+                Timer next = timer.next;
+                if (timer.deadline <= now) {
+                    unlink(timer);
+                    size--;
+                    timer.slot = EXPIRING;
+                    expired.add(timer);
+                }
+                timer = next;
+            }
+        }
+        tick = last + 1;
+        due = -1;
+
+        for (int i = 0; i < expired.size(); i++) {
+            Timer timer = expired.get(i);
+            if (timer.slot == EXPIRING) {
+                timer.slot = -1;
+                timer.task.run();
+            }
+        }
+        expired.clear();
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+        }
+
+        if (timer.next != null)
+            timer.next.prev = timer.prev;
+
+        timer.prev = null;
+        timer.next = null;
+        timer.slot = -1;
+    }
+}
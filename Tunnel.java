@@ -0,0 +1,214 @@
+package com.ming;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.function.Consumer;
+
+/**
+ * An established CONNECT tunnel (or upgraded connection) between a client and its upstream.
+ * Bytes are relayed as they are, so nothing is parsed: each direction has its own chain of
+ * pooled segments, filled with scattering reads and drained with gathering writes.
+ *
+ * A side is only read while the chain towards its peer has room and only written while there
+ * is something for it, so a stalled peer pushes back to the TCP window instead of the pool.
+ * Drained segments go straight back to the pool, an idle tunnel holds no buffer memory.
+ * Both keys stay on the same reactor and the tunnel is only used on its thread.
+ */
+class Tunnel {
+
+    static final int SEGMENT_SIZE = 16 * 1024;
+
+    /**
+     * Most bytes buffered per direction before reading from that side is paused
+     */
+    static final int MAX_BUFFERED = 4 * SEGMENT_SIZE;
+
+    // bytes read from one side, waiting to be written to the other
+    private final class Direction {
+        final SelectionKey source;
+        final SelectionKey target;
+        final BufferChain chain;
+        final Metrics.Counter counter;
+
+        long bytes;
+
+        // the source sent its FIN, passed on to the target with shutdownOutput() once drained
+        boolean endOfStream;
+        boolean shutdown;
+
+        // the pool ran out: not read until a segment comes back
+        boolean starved;
+
+        Direction(SelectionKey source, SelectionKey target, BufferPool pool, Metrics.Counter counter) {
+            this.source = source;
+            this.target = target;
+            this.chain = new BufferChain(pool, SEGMENT_SIZE);
+            this.counter = counter;
+        }
+
+        boolean readable() {
+            return !endOfStream && !starved && chain.size() < MAX_BUFFERED && !(clientPaused && this == toUpstream);
+        }
+
+        boolean writable() {
+            return !(clientPaused && this == toClient);
+        }
+
+        void read() throws IOException {
+            if (!readable())
+                return;
+
+            long n = chain.readFrom((SocketChannel) source.channel(), MAX_BUFFERED - chain.size());
+            if (n < 0) {
+                endOfStream = true;
+            } else if (n == 0 && !chain.hasRoom() && !pool.hasFree(SEGMENT_SIZE)) {
+                // OP_READ would fire again right away, level-triggered
+                starved = true;
+                pool.onRelease(this::fed);
+            }
+        }
+
+        private void fed() {
+            starved = false;
+            if (!closed)
+                updateInterest();
+        }
+
+        void write() throws IOException {
+            if (!writable())
+                return;
+
+            if (!chain.isEmpty()) {
+                long n = chain.writeTo((SocketChannel) target.channel());
+                bytes += n;
+                counter.add(n);
+            }
+
+            if (endOfStream && chain.isEmpty() && !shutdown) {
+                shutdown = true;
+                ((SocketChannel) target.channel()).shutdownOutput();
+            }
+        }
+    }
+
+    private final BufferPool pool;
+    private final Direction toUpstream;
+    private final Direction toClient;
+    private final Consumer<Tunnel> onClosed;
+    private final long startNanos;
+
+    private boolean closed;
+
+    // the client is neither read nor written, what the upstream sends waits in its chain
+    private boolean clientPaused;
+
+    /**
+     * onClosed is called once, after a failure or when both directions are shut down, to close
+     * both channels.
+     */
+    Tunnel(SelectionKey client, SelectionKey upstream, BufferPool pool, Metrics metrics, Consumer<Tunnel> onClosed) {
+        this.pool = pool;
+        this.toUpstream = new Direction(client, upstream, pool, metrics.bytesToUpstream);
+        this.toClient = new Direction(upstream, client, pool, metrics.bytesToClient);
+        this.onClosed = onClosed;
+        this.startNanos = System.nanoTime();
+    }
+
+    SelectionKey client() {
+        return toUpstream.source;
+    }
+
+    SelectionKey upstream() {
+        return toClient.source;
+    }
+
+    long getBytesToClient() {
+        return toClient.bytes;
+    }
+
+    long getBytesToUpstream() {
+        return toUpstream.bytes;
+    }
+
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * Start relaying, once the 200 and anything read before are written.
+     */
+    void start() {
+        updateInterest();
+    }
+
+    /**
+     * Both ready operations of one side at once: drain towards it, read from it and pass that
+     * on to the peer right away instead of waiting for the next select().
+     */
+    void handle(SelectionKey selectionKey) {
+        if (closed)
+            return;
+
+        Direction in = selectionKey == toUpstream.source ? toUpstream : toClient;
+        Direction out = in == toUpstream ? toClient : toUpstream;
+
+        try {
+            if (selectionKey.isWritable())
+                out.write();
+
+            if (selectionKey.isReadable()) {
+                in.read();
+                in.write();
+            }
+        } catch (IOException e) {
+            close();
+            return;
+        }
+
+        if (toUpstream.shutdown && toClient.shutdown) {
+            close();
+            return;
+        }
+
+        updateInterest();
+    }
+
+    /**
+     * Stop or resume moving bytes from and to the client, e.g. while it is over its byte rate.
+     */
+    void pauseClient(boolean paused) {
+        clientPaused = paused;
+        if (!closed)
+            updateInterest();
+    }
+
+    private void updateInterest() {
+        setInterest(toUpstream.source, toUpstream, toClient);
+        setInterest(toClient.source, toClient, toUpstream);
+    }
+
+    private void setInterest(SelectionKey selectionKey, Direction in, Direction out) {
+        if (!selectionKey.isValid())
+            return;
+
+        int ops = 0;
+        if (in.readable())
+            ops |= SelectionKey.OP_READ;
+        if (out.writable() && (!out.chain.isEmpty() || (out.endOfStream && !out.shutdown)))
+            ops |= SelectionKey.OP_WRITE;
+
+        if (selectionKey.interestOps() != ops)
+            selectionKey.interestOps(ops);
+    }
+
+    void close() {
+        if (closed)
+            return;
+
+        closed = true;
+        toUpstream.chain.release();
+        toClient.chain.release();
+        onClosed.accept(this);
+    }
+}
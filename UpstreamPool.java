@@ -0,0 +1,235 @@
+package com.ming;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Idle keep-alive upstream connections keyed by (host, port). Every reactor has its own pool
+ * and only uses it on its thread: a borrowed connection is already registered on the
+ * borrower's selector, so client and upstream still share one reactor and nothing is locked.
+ */
+class UpstreamPool {
+
+    /**
+     * Target of an upstream connection. The host is kept lower-cased, a mutable probe instance
+     * is filled from the request views so a lookup allocates nothing.
+     */
+    static class Key {
+        private byte[] host;
+        private int hostLength;
+        private int port;
+        private int hash;
+
+        Key() {
+            this.host = new byte[64];
+        }
+
+        private Key(Key other) {
+            this.host = Arrays.copyOf(other.host, other.hostLength);
+            this.hostLength = other.hostLength;
+            this.port = other.port;
+            this.hash = other.hash;
+        }
+
+        Key set(HttpRequest httpRequest) {
+            BufferChain buffer = httpRequest.buffer;
+            int offset = httpRequest.hostOffset();
+            int length = httpRequest.hostLength();
+
+            if (host.length < length)
+                host = new byte[length];
+
+            int h = httpRequest.port;
+            for (int i = 0; i < length; i++) {
+                byte b = HttpBase.toLowerCase(buffer.get(offset + i));
+                host[i] = b;
+                h = 31 * h + b;
+            }
+
+            hostLength = length;
+            port = httpRequest.port;
+            hash = h;
+
+            return this;
+        }
+
+        Key copy() {
+            return new Key(this);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key other))
+                return false;
+
+            return hash == other.hash && port == other.port &&
+                    Arrays.equals(host, 0, hostLength, other.host, 0, other.hostLength);
+        }
+    }
+
+    /**
+     * One upstream connection, created once and kept by the connection for its whole life.
+     */
+    static class Entry {
+        final Key key;
+        final SelectionKey selectionKey;
+        long idleSince;
+        boolean pooled;
+
+        Entry(Key key, SelectionKey selectionKey) {
+            this.key = key;
+            this.selectionKey = selectionKey;
+        }
+    }
+
+    private final int maxPerKey;
+    private final int maxTotal;
+    private final long idleTimeoutMillis;
+    private final Consumer<SelectionKey> closer;
+
+    private final Map<Key, ArrayDeque<Entry>> idle = new HashMap<>();
+    private final Key probe = new Key();
+    private final ByteBuffer livenessBuffer = ByteBuffer.allocate(1);
+    // written on the reactor's thread only, read by the metrics scrape too
+    private volatile int total;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * closer is called for every connection the pool gives up on.
+     */
+    UpstreamPool(int maxPerKey, int maxTotal, long idleTimeoutMillis, Consumer<SelectionKey> closer) {
+        this.maxPerKey = maxPerKey;
+        this.maxTotal = maxTotal;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.closer = closer;
+    }
+
+    Key keyFor(HttpRequest httpRequest) {
+        return probe.set(httpRequest).copy();
+    }
+
+    /**
+     * The most recently returned live connection to the request's target, or null.
+     */
+    Entry checkout(HttpRequest httpRequest) {
+        ArrayDeque<Entry> entries = idle.get(probe.set(httpRequest));
+
+        while (entries != null && !entries.isEmpty()) {
+            Entry entry = entries.pollLast();
+            total--;
+            entry.pooled = false;
+
+            if (isAlive(entry.selectionKey)) {
+                hits++;
+                return entry;
+            }
+
+            evictions++;
+            closer.accept(entry.selectionKey);
+        }
+
+        misses++;
+
+        return null;
+    }
+
+    /**
+     * Park an idle connection after a complete response. False if a limit is reached, the
+     * caller then closes it.
+     */
+    boolean checkin(Entry entry, long now) {
+        if (total >= maxTotal)
+            return false;
+
+        ArrayDeque<Entry> entries = idle.computeIfAbsent(entry.key, k -> new ArrayDeque<>());
+        if (entries.size() >= maxPerKey)
+            return false;
+
+        entry.idleSince = now;
+        entry.pooled = true;
+        entries.addLast(entry);
+        total++;
+
+        return true;
+    }
+
+    /**
+     * A pooled connection became readable (closed by the server or stray bytes), drop it.
+     */
+    void remove(Entry entry) {
+        ArrayDeque<Entry> entries = idle.get(entry.key);
+        if (entries != null && entries.remove(entry))
+            total--;
+
+        entry.pooled = false;
+    }
+
+    /**
+     * Close connections idle for longer than the timeout, the oldest are first in each deque.
+     */
+    void evictIdle(long now) {
+        Iterator<ArrayDeque<Entry>> iterator = idle.values().iterator();
+        while (iterator.hasNext()) {
+            ArrayDeque<Entry> entries = iterator.next();
+
+            Entry entry;
+            while ((entry = entries.peekFirst()) != null && now - entry.idleSince >= idleTimeoutMillis) {
+                entries.pollFirst();
+                total--;
+                entry.pooled = false;
+                evictions++;
+                closer.accept(entry.selectionKey);
+            }
+
+            if (entries.isEmpty())
+                iterator.remove();
+        }
+    }
+
+    // an idle keep-alive connection has nothing to read: EOF or stray bytes mean it is unusable
+    private boolean isAlive(SelectionKey selectionKey) {
+        if (!selectionKey.isValid())
+            return false;
+
+        try {
+            int n = ((SocketChannel) selectionKey.channel()).read(livenessBuffer);
+            livenessBuffer.clear();
+
+            return n == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    int size() {
+        return total;
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+    long getEvictions() {
+        return evictions;
+    }
+}
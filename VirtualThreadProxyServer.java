@@ -0,0 +1,339 @@
+package com.ming;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The same proxy on virtual threads: one per client connection running its requests in order
+ * with plain blocking I/O, and one more per tunnel for the upstream to client direction.
+ * Request parsing, the forwarded request and the body framing are the ones of the selector
+ * engine, only the scheduling is left to the JVM.
+ */
+public class VirtualThreadProxyServer extends ProxyServer {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 500;
+    private static final int BUFFER_SIZE = 2048;
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    VirtualThreadProxyServer(int port) {
+        super(port);
+    }
+
+    @Override
+    void runServer() {
+        try (ServerSocketChannel serverSocket = ServerSocketChannel.open()) {
+            SocketAddress socketAddress = new InetSocketAddress("localhost", port);
+            serverSocket.bind(socketAddress);
+
+            while (true) {
+                SocketChannel clientSocket = serverSocket.accept();
+                metrics.accepts.increment();
+                executor.execute(() -> handleClient(clientSocket));
+            }
+        } catch (IOException e) {
+            AsyncLog.get().error("server failed", e);
+        }
+    }
+
+    /**
+     * One client connection: read a request, forward it, relay the response, repeat. The
+     * upstream is kept while the client keeps asking the same target.
+     */
+    private void handleClient(SocketChannel clientSocket) {
+        BufferChain buffer = new BufferChain(null, BUFFER_SIZE);
+        BufferChain upstreamBuffer = new BufferChain(null, BUFFER_SIZE);
+        HttpRequest httpRequest = new HttpRequest();
+        HttpResponse httpResponse = new HttpResponse();
+        ForwardedHeader header = new ForwardedHeader();
+        ByteBuffer body = ByteBuffer.allocate(BUFFER_SIZE);
+
+        SocketChannel upstream = null;
+        String upstreamHost = null;
+        int upstreamPort = 0;
+        byte[] logHost = new byte[AsyncLog.TEXT_SIZE];
+
+        metrics.clientConnections.increment();
+
+        try (clientSocket) {
+            while (true) {
+                // bytes behind the previous request are the next one, pipelined
+                httpRequest.reset();
+
+                if (!readRequest(clientSocket, buffer, httpRequest))
+                    return;
+
+                long requestStart = System.nanoTime();
+
+                String host = httpRequest.host();
+                if (httpRequest.type == HttpRequest.NOT_IMPLEMENTED || host == null)
+                    return;
+
+                int logHostLength = httpRequest.copyHost(logHost);
+
+                // a new target, or the previous one closed the connection
+                boolean reused = upstream != null && host.equalsIgnoreCase(upstreamHost) && upstreamPort == httpRequest.port;
+                if (!reused) {
+                    // cleared first, a failed connect must not leave the closed one to close again
+                    closeUpstream(upstream);
+                    upstream = null;
+                    upstream = connect(host, httpRequest.port);
+                    upstreamHost = host;
+                    upstreamPort = httpRequest.port;
+                }
+
+                if (httpRequest.type == HttpRequest.CONNECT_TYPE) {
+                    writeFully(clientSocket, ByteBuffer.wrap(CONNECT_SUCCESS_RESPONSE));
+                    buffer.skip(httpRequest.hdrSize);
+                    tunnel(clientSocket, upstream, buffer);
+                    return;
+                }
+
+                // the header is written from the client's buffer, spliced where the proxy changes it
+                httpRequest.forwardHeader(header, null);
+
+                // the proxy asks for the body itself, it is streamed as it arrives anyway
+                if (httpRequest.expectContinue && !httpRequest.complete)
+                    writeFully(clientSocket, ByteBuffer.wrap(CONTINUE_RESPONSE));
+
+                boolean relayed = forward(upstream, clientSocket, header, buffer, httpRequest, body,
+                        upstreamBuffer, httpResponse, requestStart);
+                if (!relayed && reused && !httpRequest.hasBody() && !httpResponse.headerComplete && upstreamBuffer.isEmpty()) {
+                    // the kept-alive upstream was closed by the server in the meantime, once more on a new one
+                    closeUpstream(upstream);
+                    upstream = null;
+                    upstream = connect(host, httpRequest.port);
+                    header.rewind();
+                    relayed = forward(upstream, clientSocket, header, buffer, httpRequest, body,
+                            upstreamBuffer, httpResponse, requestStart);
+                }
+
+                // without a body the header stays in the buffer as long as it may be sent again
+                if (!httpRequest.hasBody())
+                    buffer.skip(httpRequest.hdrSize);
+
+                if (!relayed) {
+                    closeUpstream(upstream);
+                    upstream = null;
+                    if (!httpResponse.complete)
+                        return;
+                }
+
+                long duration = System.nanoTime() - requestStart;
+                metrics.requestDuration.record(0, duration);
+                AsyncLog.get().access(-1, httpRequest.type, logHost, logHostLength, httpResponse.statusCode,
+                        httpResponse.messageLength, duration);
+
+                if (httpResponse.isSwitchingProtocols()) {
+                    tunnel(clientSocket, upstream, buffer);
+                    return;
+                }
+
+                // without a length the client can only tell the end of the body by the close, and
+                // a response before the whole request body leaves the rest of it unread
+                if (httpResponse.isCloseDelimited() || !httpRequest.complete)
+                    return;
+
+                if (httpResponse.connectionClose) {
+                    closeUpstream(upstream);
+                    upstream = null;
+                }
+            }
+        } catch (IOException e) {
+            // either side went away
+        } finally {
+            closeUpstream(upstream);
+            metrics.clientConnections.decrement();
+        }
+    }
+
+    // a pipelined request may already be buffered, the socket is only read when it is incomplete
+    private boolean readRequest(SocketChannel clientSocket, BufferChain buffer, HttpRequest httpRequest) throws IOException {
+        while (true) {
+            int result = httpRequest.parse(buffer, buffer.size());
+            if (result == HttpBase.PARSE_DONE)
+                return true;
+            if (result == HttpBase.PARSE_ERROR)
+                return false;
+
+            if (clientSocket.read(buffer.writable(true)) < 0)
+                return false;
+        }
+    }
+
+    private boolean forward(SocketChannel upstream, SocketChannel clientSocket, ForwardedHeader header,
+                            BufferChain clientBuffer, HttpRequest httpRequest, ByteBuffer body,
+                            BufferChain buffer, HttpResponse httpResponse, long requestStart) throws IOException {
+        httpResponse.reset();
+        httpResponse.expectNoBody(httpRequest.isHead());
+        buffer.clear();
+
+        try {
+            while (header.hasRemaining())
+                metrics.bytesToUpstream.add(header.writeTo(upstream));
+
+            // the body follows the header, then whatever is left is the next request
+            if (httpRequest.hasBody()) {
+                clientBuffer.skip(httpRequest.hdrSize);
+                sendBody(clientSocket, upstream, clientBuffer, httpRequest, body);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+
+        return relayResponse(upstream, clientSocket, buffer, httpResponse, requestStart);
+    }
+
+    /**
+     * Stream the request body as it is read, one read at a time through body: the memory
+     * used does not depend on the body size. What follows the body stays in buffer.
+     */
+    private void sendBody(SocketChannel clientSocket, SocketChannel upstream, BufferChain buffer,
+                          HttpRequest httpRequest, ByteBuffer body) throws IOException {
+        while (!httpRequest.complete) {
+            if (buffer.isEmpty() && clientSocket.read(buffer.writable(true)) < 0)
+                throw new EOFException("client closed within the request body");
+
+            int n = httpRequest.feedBody(buffer, 0, Math.min(buffer.size(), body.capacity()));
+            buffer.copyTo(0, body.clear(), n);
+            buffer.skip(n);
+
+            metrics.bytesToUpstream.add(writeFully(upstream, body.flip()));
+        }
+    }
+
+    /**
+     * Relay one response, held back until its header is parsed and then streamed as read.
+     * False if the upstream cannot be used again: closed, or an unusable response.
+     */
+    private boolean relayResponse(SocketChannel upstream, SocketChannel clientSocket, BufferChain buffer,
+                                  HttpResponse httpResponse, long requestStart) throws IOException {
+        boolean firstByte = true;
+
+        while (true) {
+            int from = buffer.size();
+            int bytesRead = upstream.read(buffer.writable(!httpResponse.headerComplete));
+
+            if (firstByte && bytesRead > 0) {
+                firstByte = false;
+                metrics.timeToFirstByte.record(0, System.nanoTime() - requestStart);
+            }
+
+            if (bytesRead < 0) {
+                // a close-delimited body ends here
+                if (httpResponse.endOfStream()) {
+                    while (!buffer.isEmpty())
+                        metrics.bytesToClient.add(buffer.writeTo(clientSocket));
+                }
+
+                return false;
+            }
+
+            int result = httpResponse.feed(buffer, from, buffer.size());
+            if (result == HttpBase.PARSE_ERROR)
+                return false;
+
+            if (!httpResponse.headerComplete)
+                continue;
+
+            // blocking, all of it
+            while (!buffer.isEmpty())
+                metrics.bytesToClient.add(buffer.writeTo(clientSocket));
+
+            if (result == HttpBase.PARSE_DONE)
+                return true;
+        }
+    }
+
+    /**
+     * Relay raw bytes both ways until either side closes, the other direction on its own
+     * virtual thread.
+     */
+    private void tunnel(SocketChannel clientSocket, SocketChannel upstream, BufferChain buffer) throws IOException {
+        // what the client sent right behind its request belongs to the tunnel
+        while (!buffer.isEmpty())
+            metrics.bytesToUpstream.add(buffer.writeTo(upstream));
+
+        Thread downstream = Thread.ofVirtual().start(() -> pipe(upstream, clientSocket, metrics.bytesToClient));
+        pipe(clientSocket, upstream, metrics.bytesToUpstream);
+
+        // the client half-closed, what the upstream still sends is relayed before closing
+        try {
+            downstream.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void pipe(SocketChannel source, SocketChannel target, Metrics.Counter relayed) {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE * 8);
+
+        try {
+            while (source.read(buffer) >= 0) {
+                relayed.add(writeFully(target, buffer.flip()));
+                buffer.clear();
+            }
+
+            target.shutdownOutput();
+        } catch (IOException e) {
+            // either side went away, closing both ends the other direction too
+            closeQuietly(source);
+            closeQuietly(target);
+        }
+    }
+
+    private SocketChannel connect(String host, int port) throws IOException {
+        // blocking lookup, only this virtual thread waits
+        InetAddress address = InetAddress.getByName(host);
+
+        SocketChannel socketChannel = SocketChannel.open();
+        long start = System.nanoTime();
+        try {
+            socketChannel.socket().connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            closeQuietly(socketChannel);
+            throw e;
+        }
+
+        metrics.connectLatency.record(0, System.nanoTime() - start);
+        metrics.upstreamConnections.increment();
+
+        return socketChannel;
+    }
+
+    private static int writeFully(SocketChannel socketChannel, ByteBuffer buffer) throws IOException {
+        int written = buffer.remaining();
+        while (buffer.hasRemaining())
+            socketChannel.write(buffer);
+
+        return written;
+    }
+
+    // every upstream connect() opened passes here exactly once
+    private void closeUpstream(SocketChannel upstream) {
+        if (upstream == null)
+            return;
+
+        metrics.upstreamConnections.decrement();
+        closeQuietly(upstream);
+    }
+
+    private static void closeQuietly(SocketChannel socketChannel) {
+        if (socketChannel == null)
+            return;
+
+        try {
+            socketChannel.close();
+        } catch (IOException exception) {
+            AsyncLog.get().error("close failed", exception);
+        }
+    }
+}